@@ -0,0 +1,125 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the parts of a session where time goes: the handshake, ciphering,
+ * frames read from and written to the socket, incoming connections and the dispatch of chat area updates
+ * to the JavaFx Application Thread. The events cost next to nothing unless a recording is running with
+ * them enabled; resources/cryptochat.jfc enables them all, e.g.
+ * java -XX:StartFlightRecording:settings=resources/cryptochat.jfc,filename=cryptochat.jfr ...
+ *
+ * Usage: create the event, call begin(), do the work, call end(), and set the fields and commit only
+ * if shouldCommit() returns true, so that nothing is computed for events that are not recorded.
+ */
+public final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    @Name("cryptochat.Handshake")
+    @Label("Handshake")
+    @Category({"CryptoChat", "Cryptography"})
+    @Description("Key generation and exchange at the start of a session")
+    @StackTrace(false)
+    static class Handshake extends Event {
+        @Label("Asymmetric Algorithm")
+        String asymmetricAlgorithm;
+
+        @Label("Asymmetric Key Size")
+        int asymmetricKeySize;
+
+        @Label("Symmetric Algorithm")
+        String symmetricAlgorithm;
+    }
+
+    @Name("cryptochat.Cipher")
+    @Label("Cipher")
+    @Category({"CryptoChat", "Cryptography"})
+    @Description("Encryption and signing of an outgoing payload, or verification and decryption of an incoming one")
+    @StackTrace(false)
+    static class Cipher extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Payload Type")
+        String payloadType;
+
+        @Label("Text Length")
+        @Description("The number of characters of text in the payload, if any")
+        int textLength;
+    }
+
+    @Name("cryptochat.FrameRead")
+    @Label("Frame Read")
+    @Category({"CryptoChat", "Network"})
+    @Description("Reading of a frame, from its first chunk having been read until its last one has")
+    @StackTrace(false)
+    static class FrameRead extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Channel")
+        int channel;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("cryptochat.FrameWritten")
+    @Label("Frame Written")
+    @Category({"CryptoChat", "Network"})
+    @Description("Ciphering, serialization and writing of a frame, from its first chunk until its last one, including the chunks of other frames written in between")
+    @StackTrace(false)
+    static class FrameWritten extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Channel")
+        int channel;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("cryptochat.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"CryptoChat", "Network"})
+    @Description("Handling of an incoming connection by the server, from accept until a session has been started for it")
+    @StackTrace(false)
+    static class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("cryptochat.StateChanged")
+    @Label("State Changed")
+    @Category({"CryptoChat", "Network"})
+    @Description("A change of the application's state of connection")
+    static class StateChanged extends Event {
+        @Label("From")
+        String from;
+
+        @Label("To")
+        String to;
+    }
+
+    @Name("cryptochat.Display")
+    @Label("Display")
+    @Category({"CryptoChat", "User Interface"})
+    @Description("A chat area update, from its dispatch to the JavaFx Application Thread until it has been appended")
+    @StackTrace(false)
+    static class Display extends Event {
+        @Label("Length")
+        int length;
+    }
+}
@@ -0,0 +1,26 @@
+import java.io.Serializable;
+
+/**
+ * A chat message along with the id under which it is kept in the sender's Outbox. The id is
+ * returned in an acknowledgement once the message has been received and deciphered.
+ */
+public class ChatMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String text;
+
+    public ChatMessage(long id, String text) {
+        this.id = id;
+        this.text = text;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -1,71 +1,182 @@
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.SignedObject;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A Runnable charged with all communication with remote host once a socket has connected.
+ * A Runnable charged with all communication with remote host once a connection has been established.
  * If the local user is the initiating party, reads the accept/decline response from remote
  * host and reacts accordingly (closes the socket and ends execution if response is a decline).
  * If the local user is the responding party, sends the response (and subsequently closes the
  * socket and ends execution if response is a decline). If the response is an accept, performs
  * public key exchange, after which encrypted and signed messages can be read and written
- * (message writes are performed on a separate thread). Runs until either party disconnects,
- * or any kind of unrecoverable error occurs.
+ * (message writes are performed on a separate thread, and interleaved with the other frames
+ * by a Multiplexer). Runs until either party disconnects, or any kind of unrecoverable error occurs.
  */
 public class ChatSession implements Runnable {
 
-    private final Socket socket;
+    private static final Log log = Log.forClass(ChatSession.class);
+
+    // the maximum number of incoming frames being verified and decrypted at once
+    private static final int RECEIVE_PIPELINE_CAPACITY = 4 * Runtime.getRuntime().availableProcessors();
+    // the object streams at both ends keep every object written since the last reset in their handle tables,
+    // so the output stream is reset after this many frames or bytes to keep long sessions from growing
+    private static final int STREAM_RESET_CHUNKS = 256;
+    private static final long STREAM_RESET_BYTES = 1024 * 1024;
+    // messages longer than this (in characters) are sent on the bulk channel, so that they do not hold up short ones
+    private static final int BULK_MESSAGE_LENGTH = Multiplexer.CHUNK_SIZE / 4;
+    // and are cut into parts of at most this many characters, so that a part, like a short message, fits in about
+    // a chunk (at most 3 bytes per character); only the last part of a message is signed, so parts are cheap
+    private static final int MESSAGE_PART_LENGTH = BULK_MESSAGE_LENGTH;
+    // the most parts of a long message ciphered and queued for writing at once, so that the message is never
+    // held ciphered in full (ciphering the parts is about as fast as writing them, so a few are enough). A part takes
+    // its sequence number when it is ciphered, so the frames written while it waits overtake it; as it waits
+    // behind at most PARTS_IN_FLIGHT - 1 others, and the chat channel can only carry a window's worth of
+    // (signed, so no smaller than a signature) frames in the meantime, far fewer than ReplayWindow.WINDOW do
+    private static final int PARTS_IN_FLIGHT = 4;
+    // messages are acknowledged in batches, each signed once: a batch is sent when it holds this many ids, or
+    // when its first id has waited this long (in ms), so a busy session signs a fraction of the acknowledgements
+    private static final int ACK_BATCH = 64;
+    private static final long ACK_DELAY = 10;
+
+    // sends the acknowledgements of all sessions that have waited ACK_DELAY
+    private static final ScheduledExecutorService ackTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "acknowledgements");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Transport.Connection connection;
     private final Model model;
     private final Command response;
-    private boolean cancelled = false;
+    // the identity remote host announced before the user accepted, which it must prove (responder only)
+    private PublicKey announcedIdentity;
+    private volatile boolean cancelled = false;
     private ObjectInputStream ois;
     private ObjectOutputStream oos;
     private Cryptographer cryptographer;
     // writes are done from different threads, so we synchronize writes to avoid incorrect interleaving
     private final Object writeLock = new Object();
+    // writes all frames once the session has started (set on the session thread, used by the writing threads)
+    private volatile Multiplexer multiplexer;
     // helps us keep track of whether a decline has been sent (by any party), so we can avoid sending a second
     // decline command to a socket that has already been closed on the other side
     private boolean declineSent = false;
+    // when the last object was read from/written to the socket (System.nanoTime), used by the heartbeat
+    private volatile long lastRead;
+    private volatile long lastWritten;
+    private Thread heartbeatThread;
+    // messages to remote host that have not been acknowledged yet
+    private Outbox outbox;
+    // when each of these messages was sent in this session (System.nanoTime), by id
+    private final Map<Long, Long> sendTimes = new ConcurrentHashMap<>();
+    // writes the user's messages one at a time in the order they were sent, those left from earlier sessions first
+    private final ExecutorService messageWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+    // the ids of the messages from remote host delivered so far, in this session and earlier ones
+    private ReplayWindow deliveredMessages;
+    // the ids of delivered messages not acknowledged yet (guarded by the array itself)
+    private final long[] unacknowledged = new long[ACK_BATCH];
+    private int unacknowledgedCount = 0;
+    // the long message from remote host being delivered part by part: its id, the index of the next part, and
+    // the digest of the parts so far (only accessed by the receive pipeline's deliveries)
+    private long partsId;
+    private int nextPartIndex = 0;
+    private final MessageDigest partsDigest = newDigest();
+    // bytes written to the socket in total, and the usage of the own ratchet since it was last rekeyed (all guarded by writeLock)
+    private long bytesWritten = 0;
+    private long bytesAtRekey = 0;
+    private long messagesSinceRekey = 0;
+    // chunks and bytes written since the output stream was last reset (guarded by writeLock)
+    private int chunksSinceReset = 0;
+    private long bytesAtReset = 0;
+    private long lastRekey;
+    // the number of times the own ratchet has been rekeyed (only changed on the multiplexer's writer thread)
+    private volatile long rekeys = 0;
+    private final AtomicBoolean rekeying = new AtomicBoolean(false);
+    // verifies and decrypts incoming frames on worker threads, and delivers them in order
+    private final ReceivePipeline pipeline = new ReceivePipeline(RECEIVE_PIPELINE_CAPACITY);
 
 
     /**
      * Used when localhost initiates an outgoing connection (i.e. acts as client)
-     * @param socket the connected socket on which communication is to be performed
+     * @param connection the connection on which communication is to be performed
      * @param model the calling object
      */
-    public ChatSession(Socket socket, Model model) {
-        this.socket = socket;
+    public ChatSession(Transport.Connection connection, Model model) {
+        this.connection = connection;
         this.model = model;
         this.response = null;
+        this.announcedIdentity = null;
     }
 
     /**
      * Used when localhost receives an incoming connection (i.e. acts as server)
-     * @param socket the connected socket on which communication is to be performed
+     * @param connection the connection on which communication is to be performed
      * @param model the calling object
      * @param response the response to be sent to remote host
      */
-    public ChatSession(Socket socket, Model model, Command response) {
+    public ChatSession(Transport.Connection connection, Model model, Command response) {
+        this(connection, model, response, null);
+    }
+
+    /**
+     * Used when localhost receives an incoming connection (i.e. acts as server)
+     * @param connection the connection on which communication is to be performed
+     * @param model the calling object
+     * @param response the response to be sent to remote host
+     * @param announcedIdentity the identity remote host announced (see Identity), already read from the
+     *                          connection, or null if the session is to read it
+     */
+    public ChatSession(Transport.Connection connection, Model model, Command response, PublicKey announcedIdentity) {
         if (!response.equals(Command.ACCEPTED) && !response.equals(Command.DECLINED)) {
             throw new RuntimeException("ChatSession constructed with bad arguments");
         }
 
-        this.socket = socket;
+        this.connection = connection;
         this.model = model;
         this.response = response;
+        this.announcedIdentity = announcedIdentity;
     }
 
     @Override
     public void run() {
         try {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
+            // remote host needs to know who is inviting it before it decides, so this goes before anything else
+            if (response == null) {
+                model.getIdentity().announce(connection.getOutputStream());
+            } else if (announcedIdentity == null) {
+                announcedIdentity = Identity.readAnnouncement(connection);
+            }
+            oos = new ObjectOutputStream(countBytesWritten(connection.getOutputStream()));
+            ois = new ObjectInputStream(connection.getInputStream());
 
             // set a timeout so reads do not block indefinitely, so we can check if the thread has been cancelled
-            socket.setSoTimeout(1000);
+            connection.setReadTimeout(1000);
 
             // local user is the initiator, we expect a response from remote host
             if (response == null) {
@@ -74,7 +185,7 @@ public class ChatSession implements Runnable {
                     try {
                         Command responseFromRemoteHost = (Command) ois.readObject();
                         if (responseFromRemoteHost.equals(Command.DECLINED)) {
-                            model.sessionEnded("Remote host " + getRemoteAddress() + " has declined your invite.");
+                            model.sessionEnded(this, "Remote host {} has declined your invite.", getRemoteAddress());
                             declineSent = true;
                             return;
                         }
@@ -86,7 +197,7 @@ public class ChatSession implements Runnable {
                 }
 
                 if (cancelled) {
-                    model.sessionEnded("You have cancelled the outgoing connection to " + getRemoteAddress() + ".");
+                    model.sessionEnded(this, "You have cancelled the outgoing connection to {}.", getRemoteAddress());
                     return;
                 }
 
@@ -98,10 +209,9 @@ public class ChatSession implements Runnable {
                 }
 
                 if (response.equals(Command.DECLINED)) {
-                    String message = model.hasOngoingChatSession() ?
-                            "An invite from " + getRemoteAddress() + " has been rejected as there is already an ongoing session" :
-                            "You have declined an invite from " + getRemoteAddress() + ".";
-                    model.incomingConnectionDeclined(message);
+                    model.incomingConnectionDeclined(model.hasOngoingChatSession() ?
+                            "An invite from {} has been rejected as there is already an ongoing session" :
+                            "You have declined an invite from {}.", getRemoteAddress());
                     declineSent = true;
                     return;
                 }
@@ -109,32 +219,69 @@ public class ChatSession implements Runnable {
 
             // allow for longer blocks during key exchange, since reads here are not looped;
             // a timeout here terminates the connection
-            socket.setSoTimeout(10000);
+            connection.setReadTimeout(10000);
 
             cryptographer = new Cryptographer();
             cryptographer.exchangeKeys(ois, oos);
-
-            model.sessionStarted(this, cryptographer.getOwnPublicKey(), cryptographer.getOthersPublicKey());
+            PublicKey othersIdentity = cryptographer.authenticate(model.getIdentity(), ois, oos);
+            // the user may have accepted the invite because of the identity announced, so it is the one to prove
+            if (response != null && !announcedIdentity.equals(othersIdentity)) {
+                throw new FailedVerificationException();
+            }
+            StartupTimer.mark(StartupTimer.FIRST_HANDSHAKE);
+            String othersFingerprint = Identity.fingerprint(othersIdentity);
+            outbox = model.getOutbox(othersFingerprint);
+            deliveredMessages = model.getDeliveredMessages(othersFingerprint);
 
             // reset to shorter timeout to allow for a faster response to a user cancel
-            socket.setSoTimeout(1000);
+            connection.setReadTimeout(1000);
+
+            // the user can write as soon as the session has started, so everything writing needs goes before
+            lastRead = lastWritten = lastRekey = System.nanoTime();
+            multiplexer = new Multiplexer(this::writeChunk);
+            multiplexer.start();
+            startHeartbeat();
+            int resent = resendPending();
+
+            model.sessionStarted(this, model.getIdentity().getFingerprint(), othersFingerprint);
+            if (resent > 0) {
+                model.resendingMessages(resent, getRemoteAddress());
+            }
 
             readFromRemoteHost();
 
             if (cancelled) {
-                model.sessionEnded("You have ended the chat session with " + getRemoteAddress() + ".");
+                model.sessionEnded(this, "You have ended the chat session with {}.", getRemoteAddress());
             }
 
-        // protocol breach (unexpected object)
-        } catch (ClassCastException e) {
-            model.sessionEnded("There was an error communicating with " + getRemoteAddress() + ". Chat session ending.");
+        // remote host is not who it claimed to be, or is not in possession of the keys it sent
+        } catch (FailedVerificationException e) {
+            log.warn("Remote host at {} could not prove its identity", getRemoteAddress());
+            model.sessionEnded(this, "Remote host at {} could not prove its identity. Chat session ending.", getRemoteAddress());
+
+        // protocol breach (unexpected object, or chunks that do not add up)
+        } catch (ClassCastException | StreamCorruptedException e) {
+            log.info("Protocol breach by {}", getRemoteAddress(), e);
+            model.sessionEnded(this, "There was an error communicating with {}. Chat session ending.", getRemoteAddress());
 
         } catch (Exception e) {
-            e.printStackTrace();
-            model.sessionEnded("Chat session with " + getRemoteAddress() + " ending.");
+            log.warn("Chat session with {} failed", getRemoteAddress(), e);
+            model.sessionLost(this, "Chat session with {} ending.", getRemoteAddress());
 
         } finally {
-            if (!declineSent) {
+            messageWriter.shutdown();
+
+            if (heartbeatThread != null) {
+                heartbeatThread.interrupt();
+            }
+
+            if (multiplexer != null) {
+                // notifies remote host that session has ended, unless it knows, and of the last messages read
+                if (!declineSent) {
+                    sendAcknowledgements();
+                }
+                multiplexer.close(!declineSent);
+            } else if (!declineSent) {
                 // notify remote host that session has ended
                 synchronized (writeLock) {
                     try {
@@ -147,7 +294,7 @@ public class ChatSession implements Runnable {
             }
 
             try {
-                socket.close();
+                connection.close();
             } catch (IOException e) {
                 // ignore
             }
@@ -157,38 +304,115 @@ public class ChatSession implements Runnable {
     /**
      * Reads and decrypts messages from remote host until cancelled (the user terminates the session),
      * a "declined" command is received (remote host terminates), or an irrecoverable error occurs.
+     * Frames are only put together from their chunks here; verification and decryption are done by the
+     * receive pipeline, which delivers them in the order they were completed. Frames that change the keys
+     * used for later frames are processed right away, before the next chunk is read.
      * @throws Exception
      */
     private void readFromRemoteHost() throws Exception {
+        long maxSilence = model.getHeartbeatInterval() * model.getHeartbeatMissThreshold();
 
         while (!cancelled) {
             try {
-                Command command = (Command) ois.readObject();
+                pipeline.throwIfFailed();
+
+                Chunk chunk = (Chunk) ois.readObject();
+                lastRead = System.nanoTime();
+
+                // a replayed or stale frame is turned away at its first chunk, before any of it is buffered or verified
+                if (chunk.isFirst() && chunk.getCommand() != Command.CREDIT && chunk.getCommand() != Command.DECLINED) {
+                    if (!cryptographer.reserveSequence(chunk.getSequence())) {
+                        log.warn("Replayed or stale frame {} from {}", chunk.getSequence(), getRemoteAddress());
+                        throw new FailedVerificationException();
+                    }
+                }
+
+                Multiplexer.Frame frame = multiplexer.receive(chunk);
+                // credit for our own writes, already taken in
+                if (frame == null) {
+                    continue;
+                }
+                // the frame was ciphered with the keys that were in effect when remote host wrote its first chunk
+                if (chunk.isFirst()) {
+                    frame.setDecipherer(cryptographer.currentDecipherer());
+                }
+                if (!frame.isComplete()) {
+                    continue;
+                }
+
+                Command command = frame.getCommand();
+                var decipherer = frame.getDecipherer();
 
                 // remote host has quit
                 if (command.equals(Command.DECLINED)) {
-                    model.sessionEnded("Remote host at " + getRemoteAddress() + " has left the chat session.");
+                    pipeline.awaitDelivered();
+                    model.sessionEnded(this, "Remote host at {} has left the chat session.", getRemoteAddress());
                     declineSent = true;
                     break;
 
                 // incoming message
                 } else if (command.equals(Command.MESSAGE)) {
-                    // read encrypted message
-                    String message = cryptographer.decipher((SignedObject) ois.readObject());
-                    model.readMessage(getRemoteAddress() + ": " + message);
+                    pipeline.submit(() -> {
+                        ChatMessage chatMessage = (ChatMessage) decipherer.decipher((SignedObject) frame.getPayload(), frame.getSequence());
+                        return () -> deliverMessage(chatMessage);
+                    });
+
+                // part of a long incoming message, displayed as soon as it has been verified; all but the last part
+                // are sealed rather than signed, if the cipher suite allows
+                } else if (command.equals(Command.MESSAGE_PART)) {
+                    pipeline.submit(() -> {
+                        Object payload = frame.getPayload();
+                        MessagePart part = payload instanceof SealedPart sealedPart
+                                ? decipherer.open(sealedPart, frame.getSequence())
+                                : (MessagePart) decipherer.decipher((SignedObject) payload, frame.getSequence());
+                        if (part.isLast() && !(payload instanceof SignedObject)) {
+                            throw new FailedVerificationException();
+                        }
+                        return () -> deliverMessagePart(part);
+                    });
+
+                // remote host has received some of our messages
+                } else if (command.equals(Command.ACK)) {
+                    pipeline.submit(() -> {
+                        long[] ids = (long[]) decipherer.decipher((SignedObject) frame.getPayload(), frame.getSequence());
+                        return () -> {
+                            for (long id : ids) {
+                                messageAcknowledged(id);
+                            }
+                        };
+                    });
+
+                // remote host has switched to a new secret key
+                } else if (command.equals(Command.REKEY)) {
+                    cryptographer.acceptRekey((SignedObject) frame.getPayload(), frame.getSequence());
+
+
+                // remote host is idle but alive; the heartbeat must still verify, so it cannot be forged
+                } else if (command.equals(Command.HEARTBEAT)) {
+                    pipeline.submit(() -> {
+                        decipherer.decipher((SignedObject) frame.getPayload(), frame.getSequence());
+                        return () -> {};
+                    });
 
                 // protocol breach (unexpected enum value)
                 } else {
-                    model.sessionEnded("There was an error communicating with " + getRemoteAddress() + ". Chat session ending.");
+                    model.sessionEnded(this, "There was an error communicating with {}. Chat session ending.", getRemoteAddress());
                     break;
                 }
 
             } catch (SocketTimeoutException e) {
-                // ignore
+                // remote host should have sent a heartbeat by now, assume the connection is dead
+                if (System.nanoTime() - lastRead > maxSilence * 1_000_000) {
+                    model.sessionLost(this, "Remote host at {} has not responded for {} seconds. Chat session ending.",
+                            getRemoteAddress(), maxSilence / 1000);
+                    // no point in notifying a host that is not there
+                    declineSent = true;
+                    break;
+                }
 
             // signature could not be verified
             } catch (FailedVerificationException e) {
-                model.sessionEnded("The message could not be verified with remote host's public key. Chat session with " + getRemoteAddress() + " ending.");
+                model.sessionEnded(this, "The message could not be verified with remote host's public key. Chat session with {} ending.", getRemoteAddress());
                 break;
             }
         }
@@ -196,30 +420,368 @@ public class ChatSession implements Runnable {
     }
 
     /**
-     * Writes an encrypted message to the remote host.
+     * Removes an acknowledged message from the outbox and reports its round-trip time, i.e. the time from
+     * the user sending it until remote host has deciphered and displayed it and the acknowledgement has
+     * come back (which remote host may hold back for up to ACK_DELAY, to send it along with others).
+     * @param id the id of the message
+     */
+    private void messageAcknowledged(long id) {
+        long now = System.nanoTime();
+        String message = outbox.acknowledge(id);
+        Long sendTime = sendTimes.remove(id);
+        if (message != null && sendTime != null) {
+            model.messageDelivered(message, now - sendTime);
+        }
+    }
+
+    /**
+     * Delivers a deciphered message to the user and acknowledges it. Run by the receive pipeline,
+     * in the order the messages were received. A message that has been delivered before (resent because
+     * its acknowledgement was lost) is only acknowledged again.
+     * @param chatMessage the deciphered message
+     */
+    private void deliverMessage(ChatMessage chatMessage) {
+        if (deliveredMessages.accept(chatMessage.getId())) {
+            model.readMessage("{}: {}", getRemoteAddress(), chatMessage.getText());
+        }
+
+        acknowledge(chatMessage.getId());
+    }
+
+    /**
+     * Delivers a deciphered part of a long message to the user, and acknowledges the message once its last part
+     * has been delivered. Run by the receive pipeline, in the order the parts were received. The parts of a
+     * message that has been delivered before are not displayed again.
+     * The parts of a message must come in order, and the digest signed along with the last part must match
+     * the parts delivered; otherwise the pipeline is failed, which ends the session.
+     * @param part the deciphered part
+     */
+    private void deliverMessagePart(MessagePart part) {
+        if (part.getIndex() == 0) {
+            partsId = part.getId();
+            nextPartIndex = 0;
+            partsDigest.reset();
+        }
+        if (part.getId() != partsId || part.getIndex() != nextPartIndex) {
+            pipeline.fail(new StreamCorruptedException("Part " + part.getIndex() + " of message " + part.getId() + " out of order"));
+            return;
+        }
+        nextPartIndex++;
+        partsDigest.update(part.getText().getBytes(StandardCharsets.UTF_8));
+        if (part.isLast() && !MessageDigest.isEqual(partsDigest.digest(), part.getDigest())) {
+            pipeline.fail(new FailedVerificationException());
+            return;
+        }
+
+        if (deliveredMessages.isFresh(part.getId())) {
+            model.readMessagePart(getRemoteAddress(), part.getText(), part.getIndex() == 0, part.isLast());
+        }
+
+        if (part.isLast()) {
+            deliveredMessages.accept(part.getId());
+            acknowledge(part.getId());
+        }
+    }
+
+    /**
+     * Adds a delivered message to the next batch of acknowledgements, and sends the batch if it is full.
+     * If the message is the first in the batch, the batch is sent ACK_DELAY ms later at the latest.
+     * @param id the id of the message
+     */
+    private void acknowledge(long id) {
+        synchronized (unacknowledged) {
+            unacknowledged[unacknowledgedCount++] = id;
+            if (unacknowledgedCount == 1) {
+                ackTimer.schedule(this::sendAcknowledgements, ACK_DELAY, TimeUnit.MILLISECONDS);
+            }
+            if (unacknowledgedCount < ACK_BATCH) {
+                return;
+            }
+        }
+        sendAcknowledgements();
+    }
+
+    /**
+     * Sends the ids of the messages delivered since the last batch, if any, in a single ACK. Not waited for,
+     * so that a slow writer never holds up delivery; if the connection breaks, the reader notices and the
+     * messages are resent in the next session.
+     */
+    private void sendAcknowledgements() {
+        long[] ids;
+        synchronized (unacknowledged) {
+            if (unacknowledgedCount == 0) {
+                return;
+            }
+            ids = Arrays.copyOf(unacknowledged, unacknowledgedCount);
+            unacknowledgedCount = 0;
+        }
+        writeCiphered(Multiplexer.CONTROL, Command.ACK, ids);
+    }
+
+    /**
+     * Writes an encrypted message to the remote host. The message is kept in the outbox until
+     * remote host acknowledges it, and is resent in the next session if it never is.
      * @param message the message to write
      */
     public void writeToRemoteHost(String message) {
-        var writeTask = new Runnable() {
+        ChatMessage chatMessage = outbox.add(message);
+        sendTimes.put(chatMessage.getId(), System.nanoTime());
+
+        try {
+            messageWriter.execute(() -> writeQueued(chatMessage));
+        } catch (RejectedExecutionException e) {
+            // the session has ended; the message is resent in the next one
+            model.errorWritingMessage(message);
+        }
+    }
+
+    /**
+     * Queues the messages that remote host did not acknowledge in earlier sessions to be resent, in order.
+     * Called on the session thread before the session is started, so that they go ahead of any new message,
+     * and a message the user writes in the meantime is not taken for one of them and sent twice.
+     * @return the number of messages queued
+     */
+    private int resendPending() {
+        var pending = outbox.getPending();
+        for (ChatMessage chatMessage : pending) {
+            sendTimes.put(chatMessage.getId(), System.nanoTime());
+            messageWriter.execute(() -> writeQueued(chatMessage));
+        }
+        return pending.size();
+    }
+
+    /**
+     * Writes a message and reports the outcome to the model. Run by the message writer, which moves on to the
+     * next message as soon as this one is queued with the multiplexer (or, if it is long, its last part is).
+     * @param chatMessage the message to write
+     */
+    private void writeQueued(ChatMessage chatMessage) {
+        String message = chatMessage.getText();
+        try {
+            writeMessage(chatMessage).whenComplete((result, e) -> {
+                if (e == null) {
+                    model.wroteMessage(message);
+                } else {
+                    model.errorWritingMessage(message);
+                }
+            });
+        } catch (Exception e) {
+            model.errorWritingMessage(message);
+        }
+    }
+
+    /**
+     * Writes a chat message. A long message is cut into parts (see MessagePart), which are written on the bulk
+     * channel one after the other. Each part is ciphered in advance on the calling thread rather than holding up
+     * the writer, and the calling thread waits whenever PARTS_IN_FLIGHT parts are queued. All parts but the last
+     * are sealed (see SealedPart); the last is signed, along with the digest of the whole message.
+     * @param chatMessage the message to write
+     * @return completed once the message has been written
+     * @throws Exception if the message could not be ciphered, or a part could not be written
+     */
+    private CompletableFuture<Void> writeMessage(ChatMessage chatMessage) throws Exception {
+        String text = chatMessage.getText();
+        if (text.length() <= BULK_MESSAGE_LENGTH) {
+            return writeCiphered(Multiplexer.CHAT, Command.MESSAGE, chatMessage);
+        }
+
+        Deque<CompletableFuture<Void>> queued = new ArrayDeque<>();
+        MessageDigest digest = newDigest();
+        int index = 0;
+        for (int offset = 0; offset < text.length(); index++) {
+            int end = Math.min(offset + MESSAGE_PART_LENGTH, text.length());
+            // a character made up of two chars is not split between parts
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            String partText = text.substring(offset, end);
+            digest.update(partText.getBytes(StandardCharsets.UTF_8));
+            boolean last = end == text.length();
+            var part = new MessagePart(chatMessage.getId(), index, partText, last ? digest.digest() : null);
+            offset = end;
+
+            if (queued.size() >= PARTS_IN_FLIGHT) {
+                queued.remove().join();
+            }
+            long keyGeneration = rekeys;
+            SequencedFrame ciphered = last ? cryptographer.cipher(part) : cryptographer.seal(part);
+            queued.add(writeCiphered(Multiplexer.BULK, Command.MESSAGE_PART, part, ciphered, keyGeneration));
+        }
+        return CompletableFuture.allOf(queued.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> writeCiphered(int channel, Command command, Serializable payload) {
+        return writeCiphered(channel, command, payload, null, 0);
+    }
+
+    /**
+     * Queues a payload to be ciphered with the next key of the own ratchet and written. Ciphering is done on the
+     * multiplexer's writer thread right before the first chunk is written, which is also where REKEY
+     * frames are ciphered, so that no frame can be ciphered on one chain and started after the switch to
+     * the next.
+     * A frame ciphered in advance is used instead, unless the own ratchet has been rekeyed since (a part sealed in
+     * advance is then signed instead, like any other payload).
+     * @param channel the channel on which to write the frame
+     * @param command the command announcing the frame
+     * @param payload the payload to cipher
+     * @param ciphered the payload ciphered in advance, or null
+     * @param keyGeneration the value of rekeys from before the payload was ciphered in advance
+     * @return completed once the frame has been written, or exceptionally if it could not be ciphered or written
+     */
+    private CompletableFuture<Void> writeCiphered(int channel, Command command, Serializable payload,
+                                                  SequencedFrame ciphered, long keyGeneration) {
+        return multiplexer.send(channel, command, () -> {
+            SequencedFrame frame = ciphered != null && keyGeneration == rekeys ? ciphered : cryptographer.cipher(payload);
+            synchronized (writeLock) {
+                messagesSinceRekey++;
+            }
+            return frame;
+        }).whenComplete((result, e) -> {
+            if (isRekeyDue()) {
+                startRekey();
+            }
+        });
+    }
+
+    /**
+     * @return true if the own ratchet has been used for enough messages, bytes or time to mix in fresh material
+     */
+    private boolean isRekeyDue() {
+        if (rekeying.get()) {
+            return false;
+        }
+        synchronized (writeLock) {
+            return messagesSinceRekey >= model.getRekeyMessages()
+                    || bytesWritten - bytesAtRekey >= model.getRekeyBytes()
+                    || (System.nanoTime() - lastRekey) / 1_000_000 >= model.getRekeyInterval();
+        }
+    }
+
+    /**
+     * Mixes fresh secret material into the own ratchet. The material is generated and sealed on a background
+     * thread, so messages keep flowing on the old chain in the meantime; it is mixed in on the writer thread as
+     * the REKEY frame is written, and remote host mixes it in upon reading it.
+     */
+    private void startRekey() {
+        if (!rekeying.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                cryptographer.prepareRekey();
+                multiplexer.send(Multiplexer.CONTROL, Command.REKEY, cryptographer::completeRekey, () -> {
+                    rekeys++;
+                    synchronized (writeLock) {
+                        messagesSinceRekey = 0;
+                        bytesAtRekey = bytesWritten;
+                        lastRekey = System.nanoTime();
+                    }
+                }).join();
+            } catch (Exception e) {
+                // the reader notices a broken connection; otherwise the next frame tries again
+            } finally {
+                rekeying.set(false);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wraps the connection's output stream so that the number of bytes written is counted (in bytesWritten).
+     */
+    private OutputStream countBytesWritten(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten += len;
+            }
+        };
+    }
+
+    /**
+     * Writes a chunk. Called on the multiplexer's writer thread only.
+     * @param chunk the chunk to write
+     * @throws IOException if the chunk could not be written
+     */
+    private void writeChunk(Chunk chunk) throws IOException {
+        synchronized (writeLock) {
+            oos.writeObject(chunk);
+            oos.flush();
+            lastWritten = System.nanoTime();
+
+            // the reset marker goes out with the next chunk, and makes remote host's input stream let go as well
+            if (++chunksSinceReset >= STREAM_RESET_CHUNKS || bytesWritten - bytesAtReset >= STREAM_RESET_BYTES) {
+                oos.reset();
+                chunksSinceReset = 0;
+                bytesAtReset = bytesWritten;
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread that sends a heartbeat whenever nothing else has been written to remote host
+     * for a full heartbeat interval. A busy session thus sends no heartbeats at all, and an idle one sends
+     * a single small frame per interval.
+     */
+    private void startHeartbeat() {
+        long interval = model.getHeartbeatInterval();
+
+        var heartbeatTask = new Runnable() {
             @Override
             public void run() {
                 try {
-                    synchronized (writeLock) {
-                        oos.writeObject(Command.MESSAGE);
-                        oos.writeObject(cryptographer.cipher(message));
-                        oos.flush();
-                    }
-                    model.wroteMessage(message);
+                    while (!cancelled) {
+                        if (isRekeyDue()) {
+                            startRekey();
+                        }
+
+                        long idle = (System.nanoTime() - lastWritten) / 1_000_000;
+                        if (idle < interval) {
+                            Thread.sleep(interval - idle);
+                            continue;
+                        }
 
+                        writeCiphered(Multiplexer.CONTROL, Command.HEARTBEAT, "").join();
+                    }
+                } catch (InterruptedException e) {
+                    // session has ended
                 } catch (Exception e) {
-                    model.errorWritingMessage(message);
+                    // the reader notices a broken connection, so just stop sending heartbeats
                 }
             }
         };
 
-        Thread thread = new Thread(writeTask);
-        thread.setDaemon(true);
-        thread.start();
+        heartbeatThread = new Thread(heartbeatTask);
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    /**
+     * @return a SHA-256 digest, for the text of long messages
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the local user initiated the session
+     */
+    public boolean isInitiator() {
+        return response == null;
     }
 
     public void cancel() {
@@ -227,7 +789,7 @@ public class ChatSession implements Runnable {
     }
 
     public String getRemoteAddress() {
-        return socket.getInetAddress().toString();
+        return connection.getRemoteAddress();
     }
 
 }
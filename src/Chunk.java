@@ -0,0 +1,82 @@
+import java.io.Serializable;
+
+/**
+ * The unit written to the object stream once a chat session has started: a piece of a frame on one of the
+ * session's logical channels (see Multiplexer). The first chunk of a frame carries the frame's command and
+ * the last one is marked as such. The chunks of a frame are never interleaved with those of other frames on
+ * the same channel, but may be with those on other channels. The first chunk of a ciphered frame also carries
+ * the frame's sequence number (see SequencedFrame). A CREDIT chunk belongs to no frame; it carries the number
+ * of bytes that the receiver lets the sender write on the chunk's channel.
+ */
+public class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int channel;
+    private final Command command;
+    private final long sequence;
+    private final byte[] data;
+    private final boolean last;
+    private final int credit;
+
+    public Chunk(int channel, Command command, long sequence, byte[] data, boolean last) {
+        this.channel = channel;
+        this.command = command;
+        this.sequence = sequence;
+        this.data = data;
+        this.last = last;
+        this.credit = 0;
+    }
+
+    private Chunk(int channel, int credit) {
+        this.channel = channel;
+        this.command = Command.CREDIT;
+        this.sequence = 0;
+        this.data = new byte[0];
+        this.last = true;
+        this.credit = credit;
+    }
+
+    /**
+     * @param channel the channel on which the sender may write more
+     * @param credit the number of bytes the sender may write in addition to what it already could
+     * @return a CREDIT chunk
+     */
+    public static Chunk credit(int channel, int credit) {
+        return new Chunk(channel, credit);
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the command of the frame if this is its first chunk, otherwise null
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the sequence number of the frame if this is the first chunk of a ciphered frame, otherwise 0
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isFirst() {
+        return command != null;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public int getCredit() {
+        return credit;
+    }
+}
@@ -0,0 +1,344 @@
+import javax.crypto.Cipher;
+import javax.crypto.SealedObject;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A symmetric cipher with which the messages of a session can be encrypted: the algorithm of its keys, their
+ * size and the transformation. Which suites are fastest depends on the CPU (e.g. whether it has AES
+ * instructions) and on the JVM (whether it uses them), so rather than fixing one, each host measures the
+ * suites it supports once (see calibrate) and offers them to remote host in that order; both parties then
+ * settle on the same suite (see negotiate). The measurements are kept in a file along with a description of
+ * the platform they were taken on, and taken again when the platform changes.
+ */
+public final class CipherSuite {
+
+    private static final Log log = Log.forClass(CipherSuite.class);
+
+    public static final CipherSuite AES_GCM = new CipherSuite("AES-GCM", "AES", "AES/GCM/NoPadding", 256, true);
+    public static final CipherSuite CHACHA20_POLY1305 =
+            new CipherSuite("ChaCha20-Poly1305", "ChaCha20", "ChaCha20-Poly1305", 256, true);
+    public static final CipherSuite BLOWFISH =
+            new CipherSuite("Blowfish", "Blowfish", "Blowfish/ECB/PKCS5Padding", 448, false);
+    // every suite there is, in the order preferred until the suites have been measured
+    public static final List<CipherSuite> ALL = List.of(AES_GCM, CHACHA20_POLY1305, BLOWFISH);
+
+    // how many times each suite runs before it is measured, how long it is measured for in each round, and the
+    // number of rounds, of which the fastest counts
+    private static final long CALIBRATION_WARM_UP = Long.getLong("cryptochat.calibration.warmup", 1000);
+    private static final long CALIBRATION_SLICE = Long.getLong("cryptochat.calibration.slice", 40);
+    private static final int CALIBRATION_ROUNDS = Integer.getInteger("cryptochat.calibration.rounds", 5);
+    // the lengths of the messages measured: a typical chat message, and a message filling a chunk
+    private static final int[] CALIBRATION_LENGTHS = {100, 16 * 1024};
+    private static final String PLATFORM_PREFIX = "platform ";
+    // the length of the authentication tag of AES-GCM, in bits
+    private static final int GCM_TAG_LENGTH = 128;
+
+    // the suites available here, fastest first once measured
+    private static volatile List<CipherSuite> ranking;
+
+    private final String name;
+    private final String keyAlgorithm;
+    private final String transformation;
+    private final int keySize;
+    private final boolean authenticated;
+
+    private CipherSuite(String name, String keyAlgorithm, String transformation, int keySize, boolean authenticated) {
+        this.name = name;
+        this.keyAlgorithm = keyAlgorithm;
+        this.transformation = transformation;
+        this.keySize = keySize;
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * @return the name by which the suite is offered to remote host
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the algorithm of the suite's keys, for a KeyGenerator or a SecretKeySpec
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return the transformation for a Cipher
+     */
+    public String getTransformation() {
+        return transformation;
+    }
+
+    /**
+     * @return the size of the suite's keys in bits
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * @return true if the suite authenticates what it encrypts (an AEAD cipher), so that a decrypted message
+     * is known not to have been tampered with without checking a signature
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @param iv the IV (or nonce) chosen by the Cipher that encrypted a message, for an authenticated suite
+     * @return the parameters with which to initialize a Cipher to decrypt the message
+     */
+    public AlgorithmParameterSpec getParameters(byte[] iv) {
+        return this == AES_GCM ? new GCMParameterSpec(GCM_TAG_LENGTH, iv) : new IvParameterSpec(iv);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @param name the name of a suite
+     * @return the suite
+     * @throws NoSuchAlgorithmException if there is no suite by that name
+     */
+    public static CipherSuite forName(String name) throws NoSuchAlgorithmException {
+        for (CipherSuite suite : ALL) {
+            if (suite.name.equals(name)) {
+                return suite;
+            }
+        }
+        throw new NoSuchAlgorithmException("No cipher suite " + name);
+    }
+
+    /**
+     * @return the suites available on this JVM, fastest first if they have been measured, or else in the
+     * order of ALL
+     */
+    public static List<CipherSuite> getRanking() {
+        List<CipherSuite> current = ranking;
+        if (current == null) {
+            current = ALL.stream().filter(CipherSuite::isAvailable).toList();
+            ranking = current;
+        }
+        return current;
+    }
+
+    /**
+     * Chooses the suite for a session from the suites offered by both parties, each fastest first. Both parties
+     * arrive at the same suite: the one whose positions in the two offers add up to the least, and of those the
+     * one that comes first in ALL.
+     * @param ownOffer the names of the suites offered by the user
+     * @param othersOffer the names of the suites offered by remote host
+     * @return the suite
+     * @throws NoSuchAlgorithmException if the parties have no suite in common
+     */
+    public static CipherSuite negotiate(List<String> ownOffer, List<String> othersOffer) throws NoSuchAlgorithmException {
+        CipherSuite best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (CipherSuite suite : ALL) {
+            int own = ownOffer.indexOf(suite.name);
+            int others = othersOffer.indexOf(suite.name);
+            if (own >= 0 && others >= 0 && own + others < bestScore) {
+                best = suite;
+                bestScore = own + others;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchAlgorithmException("No cipher suite in common: " + ownOffer + " and " + othersOffer);
+        }
+        return best;
+    }
+
+    /**
+     * Ranks the suites available on this JVM by how fast they encrypt and decrypt messages, and makes that the
+     * ranking offered in sessions from then on. Uses the measurements kept in the given file if they were taken
+     * on the same platform, and else measures the suites and keeps the result there. Measuring takes a few
+     * seconds, so this is meant to be run on a background thread at startup; sessions started in the meantime
+     * offer the suites in the order of ALL.
+     * @param file the file in which the measurements are kept
+     */
+    public static void calibrate(Path file) {
+        String platform = describePlatform();
+        Map<String, Long> timings = readTimings(file, platform);
+        if (timings == null) {
+            timings = measure();
+            writeTimings(file, platform, timings);
+        }
+
+        Map<String, Long> nanos = timings;
+        List<CipherSuite> measured = ALL.stream()
+                .filter(suite -> nanos.containsKey(suite.name))
+                .sorted(Comparator.comparingLong(suite -> nanos.get(suite.name)))
+                .toList();
+        if (!measured.isEmpty()) {
+            ranking = measured;
+        }
+        log.info("Cipher suites ranked {} on {} (ns per message pair: {})", ranking, platform, timings);
+    }
+
+    /**
+     * @return whether this JVM supports the suite
+     */
+    private boolean isAvailable() {
+        try {
+            Cipher.getInstance(transformation);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return what the speed of the suites depends on: the JVM, and the CPU as far as it can be told
+     */
+    private static String describePlatform() {
+        String cpu = System.getenv("PROCESSOR_IDENTIFIER");
+        try {
+            Path cpuInfo = Path.of("/proc/cpuinfo");
+            if (Files.isReadable(cpuInfo)) {
+                for (String line : Files.readAllLines(cpuInfo, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("model name") || line.startsWith("Model") || line.startsWith("CPU part")) {
+                        cpu = line.substring(line.indexOf(':') + 1).trim();
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // fall back on the architecture alone
+        }
+        return String.join(" | ", System.getProperty("java.vm.vendor"), System.getProperty("java.vm.name"),
+                System.getProperty("java.vm.version"), System.getProperty("os.arch"),
+                cpu == null ? "unknown CPU" : cpu, Runtime.getRuntime().availableProcessors() + " CPUs");
+    }
+
+    /**
+     * Times each available suite sealing and unsealing messages the way sessions do, with a fresh key for
+     * every message. Each suite first runs CALIBRATION_WARM_UP times untimed, as the JIT compiler only turns to
+     * e.g. the AES instructions after many messages, and a suite measured before that would be ranked by how
+     * slowly the interpreter runs it. The suites take turns, a slice each, so that none is favoured by compiling
+     * in the background while another is measured, and the fastest round of each counts.
+     * @return the time for a message of each of CALIBRATION_LENGTHS, in ns, by suite name
+     */
+    private static Map<String, Long> measure() {
+        var random = new SecureRandom();
+        List<String> messages = new ArrayList<>();
+        for (int length : CALIBRATION_LENGTHS) {
+            messages.add("x".repeat(length));
+        }
+
+        List<CipherSuite> suites = new ArrayList<>(ALL.stream().filter(CipherSuite::isAvailable).toList());
+        Map<String, Long> warmedUp = new HashMap<>();
+        Map<String, Long> timings = new HashMap<>();
+        int round = 0;
+        while (round < CALIBRATION_ROUNDS && !suites.isEmpty()) {
+            boolean warm = true;
+            for (var iterator = suites.iterator(); iterator.hasNext(); ) {
+                CipherSuite suite = iterator.next();
+                long done = warmedUp.getOrDefault(suite.name, 0L);
+                try {
+                    long[] slice = suite.runSlice(messages, random);
+                    if (done < CALIBRATION_WARM_UP) {
+                        warmedUp.put(suite.name, done + slice[0]);
+                        warm = false;
+                    } else {
+                        timings.merge(suite.name, slice[1] / slice[0], Math::min);
+                    }
+                } catch (GeneralSecurityException | IOException | ClassNotFoundException e) {
+                    log.warn("Not offering cipher suite {}, which failed calibration", suite, e);
+                    iterator.remove();
+                    timings.remove(suite.name);
+                }
+            }
+            if (warm) {
+                round++;
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * Seals and unseals the given messages, each with a fresh key, over and over for CALIBRATION_SLICE ms.
+     * @return the number of times the messages were sealed and unsealed, and the time that took in ns
+     */
+    private long[] runSlice(List<String> messages, SecureRandom random)
+            throws GeneralSecurityException, IOException, ClassNotFoundException {
+        byte[] keyBytes = new byte[keySize / 8];
+        long count = 0;
+        long start = System.nanoTime();
+        long deadline = start + CALIBRATION_SLICE * 1_000_000;
+        long now;
+        do {
+            for (String message : messages) {
+                random.nextBytes(keyBytes);
+                var key = new SecretKeySpec(keyBytes, keyAlgorithm);
+                Cipher cipher = Cipher.getInstance(transformation);
+                cipher.init(Cipher.ENCRYPT_MODE, key);
+                if (!message.equals(new SealedObject(message, cipher).getObject(key))) {
+                    throw new GeneralSecurityException("Round trip failed");
+                }
+            }
+            count++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return new long[] {count, now - start};
+    }
+
+    /**
+     * @return the timings kept in the file, or null if there are none, or they were taken on another platform
+     */
+    private static Map<String, Long> readTimings(Path file, String platform) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(PLATFORM_PREFIX + platform)) {
+                log.info("Measuring the cipher suites again, as the platform has changed");
+                return null;
+            }
+            Map<String, Long> timings = new HashMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.trim().split(" ");
+                forName(fields[0]);
+                timings.put(fields[0], Long.parseLong(fields[1]));
+            }
+            return timings;
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            log.warn("Measuring the cipher suites again, as {} could not be read", file, e);
+            return null;
+        }
+    }
+
+    private static void writeTimings(Path file, String platform, Map<String, Long> timings) {
+        var text = new StringBuilder(PLATFORM_PREFIX).append(platform).append(System.lineSeparator());
+        timings.forEach((name, nanos) -> text.append(name).append(' ').append(nanos).append(System.lineSeparator()));
+        try {
+            // written in full to a temporary file first, so that a crash cannot leave half a file behind
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temporary, text, StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not keep the cipher suite measurements in {}", file, e);
+        }
+    }
+}
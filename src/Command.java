@@ -6,21 +6,55 @@ Protocol for conversation between localhost and remote host:
 0. Stream socket is opened/accepted                     -> 1
 
 1a. localhost is the initiator                          -> 2
+    and announces its identity (see Identity)
 1b. remote host is the initiator                        -> 6
+    and the identity it announces is read
 
 2a. localhost receives ACCEPTED from remote host        -> 3
 2b. localhost receives DECLINED from remote host        -> 10
 
 3. localhost sends public key to remote host            -> 4
+   along with the cipher suites it offers, fastest first
 
 4. localhost receives remote host's public key          -> 5
+   Both parties settle on the cipher suite that ranks highest in both offers (see CipherSuite), then
+   exchange their secret keys, encrypted with each other's public key, and sign both public keys and both
+   offers with their identity keys. The responder ends the session if the identity proven is not the one
+   announced.
 
 5. The two clients can now communicate by sending MESSAGE, followed by the encrypted and signed message
+   (along with its id). The receiving client responds with ACK, followed by the encrypted and signed ids
+   of the messages it has read since its last ACK, once it has read a batch of them or the first has waited
+   a few milliseconds.
+   Messages that have not been acknowledged when a session ends are resent at the start of the next session.
+   Each message is encrypted with a key of its own, derived from the sender's secret key by a ratchet (a chain
+   of HMAC-SHA256 keys), and is signed along with its index in the chain and a sequence number counting all
+   the frames the sender has signed in the session. A frame whose sequence number has been received before,
+   or lies too far behind the highest one received, ends the session.
+   After a number of messages, bytes or minutes, a client sends REKEY, followed by new secret material
+   (encrypted with remote host's public key) and the number of messages sent on the current chain, signed;
+   the material is mixed into the chain, and the client's subsequent messages use keys from the new chain.
+   A client that has sent nothing for a while sends HEARTBEAT, followed by an encrypted and signed empty
+   message, so that the other party can tell an idle session from a dead one.
+   A long message is sent in parts instead, each as MESSAGE_PART, followed by the encrypted part (along with
+   the message's id and the part's index), so that the receiving client can display each part as soon as it
+   arrives; the message counts as read once its last part has been. Only the last part is signed, along with
+   a SHA-256 digest of the whole message; the others are encrypted with an authenticated cipher, their
+   sequence numbers and key indices authenticated along with them (see SealedPart), unless the cipher suite
+   does not authenticate, in which case every part is signed.
+   From here on, every command and the frame following it are cut into chunks, which carry the number of a
+   logical channel: 0 for DECLINED, ACK, HEARTBEAT, REKEY and CREDIT, 1 for short messages, and 2 for the
+   parts of long messages. The chunks of frames on different channels may be interleaved, and a frame is
+   encrypted with the keys in effect when its first chunk is sent, which also carries the frame's sequence
+   number, so that a replayed frame can be told before it is read in full.
+   A client may only send as many bytes on channels 1 and 2 as the other client has allowed; it is allowed
+   more by CREDIT, followed by the number of bytes, once the other client has read what it sent before
 
 6a. There is already an ongoing session                 -> 8
 6b. There is no ongoing session                         -> 7
 
-7 The user at localhost is prompted for accept/decline
+7 The user at localhost is prompted for accept/decline, unless remote host's identity is a known peer (see
+  KnownPeers), which is accepted straight away
 a. user declines                                        -> 8
 b. user accepts                                         -> 9
 
@@ -34,6 +68,9 @@ b. user accepts                                         -> 9
 if at any time localhost cannot parse message from remote host or if remote host closes the socket
                                                         -> 10
 
+if during 5 nothing at all has been received from remote host for a number of heartbeat intervals
+                                                        -> 10
+
  */
 
 /**
@@ -41,5 +78,5 @@ if at any time localhost cannot parse message from remote host or if remote host
  * custom network protocol outlined in the comment above.
  */
 public enum Command implements Serializable {
-    ACCEPTED, DECLINED, MESSAGE
+    ACCEPTED, DECLINED, MESSAGE, ACK, HEARTBEAT, REKEY, CREDIT, MESSAGE_PART
 }
@@ -1,4 +1,3 @@
-
 /**
  * Enum used to represent the application's state of connection
  */
@@ -7,5 +6,21 @@ public enum ConnectionState {
     CONNECTING, // attempting to start a chat session with a remote host
     CANCELLING_OUTGOING_CONNECTION, // aborting connection attempt
     ACTIVE_SESSION, // connection with remote host established, chat session ongoing
-    ENDING_SESSION // closing ongoing chat session
-}
\ No newline at end of file
+    ENDING_SESSION; // closing ongoing chat session
+
+    /**
+     * @return true if the application may go from this state to the given one
+     */
+    public boolean canBecome(ConnectionState next) {
+        if (next == this) {
+            return true;
+        }
+        return switch (this) {
+            case INACTIVE -> next == CONNECTING;
+            case CONNECTING -> next != ENDING_SESSION;
+            // a lost session goes straight back to connecting if it is to be reconnected
+            case ACTIVE_SESSION -> next != CANCELLING_OUTGOING_CONNECTION;
+            case CANCELLING_OUTGOING_CONNECTION, ENDING_SESSION -> next == INACTIVE;
+        };
+    }
+}
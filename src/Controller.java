@@ -1,3 +1,4 @@
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.event.ActionEvent;
@@ -5,9 +6,11 @@ import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
+import javafx.util.Duration;
 
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.List;
 
 
 /**
@@ -19,9 +22,23 @@ public class Controller {
 
     private static final String NO_SESSION_MSG = "No ongoing session. Enter the IP address of your contact and press Start to start a session.";
     private static final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+    // the number of chat area lines kept searchable, and the maximum number of matches shown for a search
+    private static final int MAX_INDEXED_LINES = 500_000;
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    // how long the query must stay unchanged while typing before it is searched for, in ms
+    private static final int SEARCH_DELAY = 150;
     private final Model model = new Model(this);
     // we will add a listener to this property to listen for changes
     private final SimpleObjectProperty<ConnectionState> connectionState = new SimpleObjectProperty<>();
+    private final TranscriptIndex transcriptIndex = new TranscriptIndex(MAX_INDEXED_LINES);
+    // the matches of the latest search (newest first), and the one currently selected
+    private String searchQuery = "";
+    private List<TranscriptIndex.Match> searchResults = List.of();
+    private int searchPosition = 0;
+    // restarted with every change to the search field, and searches once it runs out
+    private PauseTransition searchDelay;
+    // where the line of a long message being displayed part by part starts in the chat area, or -1
+    private int openLineOffset = -1;
 
 
     @FXML
@@ -29,6 +46,8 @@ public class Controller {
     @FXML
     private Button mainButton;
     @FXML
+    private CheckBox reconnectCheckBox;
+    @FXML
     private Text displayText;
     @FXML
     private VBox publicKeyBox;
@@ -40,6 +59,12 @@ public class Controller {
     private TextArea chatArea;
     @FXML
     private TextField chatTextField;
+    @FXML
+    private Text deliveryText;
+    @FXML
+    private TextField searchField;
+    @FXML
+    private Text searchStatusText;
 
 
 
@@ -60,6 +85,7 @@ public class Controller {
                     publicKeyBox.setDisable(true);
                     ownKeyField.clear();
                     othersKeyField.clear();
+                    deliveryText.setText("");
                     displayText.setText(NO_SESSION_MSG);
                 }
                 case CONNECTING -> {
@@ -87,6 +113,16 @@ public class Controller {
         // set to INACTIVE upon start
         connectionState.set(ConnectionState.INACTIVE);
 
+        // search as the user types, but only once typing pauses, so that a burst of keystrokes costs one search
+        searchDelay = new PauseTransition(Duration.millis(SEARCH_DELAY));
+        searchDelay.setOnFinished(event -> {
+            String query = searchField.getText().trim();
+            if (!query.equals(searchQuery)) {
+                search(query);
+            }
+        });
+        searchField.textProperty().addListener((observableValue, oldValue, newValue) -> searchDelay.playFromStart());
+
         // start the server that will listen to incoming connections
         model.start();
     }
@@ -103,24 +139,30 @@ public class Controller {
     @FXML
     private void buttonHandler(ActionEvent event) {
         switch (connectionState.get()) {
+            // the model changes the state, the view follows through connectionStateChanged
             case INACTIVE -> {
                 // initiate an outgoing connection
-                connectionState.set(ConnectionState.CONNECTING);
                 model.connectTo(ipTextField.getText().trim());
             }
             case CONNECTING -> {
                 // cancel the outgoing connection (e.g. before the connection has been rejected or accepted by the remote host)
-                connectionState.set(ConnectionState.CANCELLING_OUTGOING_CONNECTION);
                 model.cancelOutgoingConnection();
             }
             case ACTIVE_SESSION -> {
                 // end the active session
-                connectionState.set(ConnectionState.ENDING_SESSION);
                 model.stopActiveSession();
             }
         }
     }
 
+    /**
+     * Called when user toggles the automatic reconnection check box.
+     */
+    @FXML
+    private void reconnectHandler(ActionEvent event) {
+        model.setAutoReconnect(reconnectCheckBox.isSelected());
+    }
+
     /**
      * Called when user presses the 'enter' key inside the chat text field
      */
@@ -136,6 +178,42 @@ public class Controller {
         model.sendMessage(message);
     }
 
+    /**
+     * Called when user presses the 'enter' key inside the search field. The transcript is searched as the user
+     * types already (see initialize); pressing 'enter' searches right away, or, if the query has not changed
+     * since, selects the next older match.
+     */
+    @FXML
+    private void searchHandler(ActionEvent event) {
+        searchDelay.stop();
+        String query = searchField.getText().trim();
+
+        if (query.equals(searchQuery) && !searchResults.isEmpty()) {
+            searchPosition = (searchPosition + 1) % searchResults.size();
+            showSearchResult();
+            return;
+        }
+
+        search(query);
+    }
+
+    /**
+     * Searches the transcript in the background, then selects the newest match.
+     * @param query the text to search for
+     */
+    private void search(String query) {
+        searchQuery = query;
+        transcriptIndex.search(query, MAX_SEARCH_RESULTS, matches -> Platform.runLater(() -> {
+            // ignore results of a query that has since been replaced
+            if (!query.equals(searchQuery)) {
+                return;
+            }
+            searchResults = matches;
+            searchPosition = 0;
+            showSearchResult();
+        }));
+    }
+
 
     /*
     // methods called by the model to update the view
@@ -143,35 +221,101 @@ public class Controller {
      */
 
     /**
-     * Called when a session with a remote host has been established. Passes the public keys and remote host
-     * address to the controller.
-     * @param ownPublicKey the user's (digested) public key
-     * @param othersPublicKey remote host's (digested) public key
+     * Called when a session with a remote host has been established. Passes the fingerprints of both identities
+     * and remote host address to the controller.
+     * @param ownFingerprint the fingerprint of the user's identity
+     * @param othersFingerprint the fingerprint of remote host's identity
      * @param address remote host's address
      */
-    public void sessionStarted(String ownPublicKey, String othersPublicKey, String address) {
+    public void sessionStarted(String ownFingerprint, String othersFingerprint, String address) {
         Platform.runLater(() -> {
-            ownKeyField.setText(ownPublicKey);
-            othersKeyField.setText(othersPublicKey);
+            ownKeyField.setText(ownFingerprint);
+            othersKeyField.setText(othersFingerprint);
 
-            connectionState.set(ConnectionState.ACTIVE_SESSION);
             displayText.setText("You have an ongoing session with " + address + " and can now chat securely. " +
-                    "You may wish to confirm that the public keys displayed to you and to your chat partner are identical.");
+                    "You may wish to confirm that the fingerprints displayed to you and to your chat partner are identical.");
         });
     }
 
     /**
-     * Called when an active session or outgoing connection attempt has ended for any reason
+     * Called whenever the model's state of connection has changed. Changes on different threads may be dispatched
+     * out of order, so the view is set to the model's state at the time it is updated rather than to the new
+     * state of each change.
      */
-    public void sessionEnded() {
-        Platform.runLater(() -> connectionState.set(ConnectionState.INACTIVE));
+    public void connectionStateChanged() {
+        Platform.runLater(() -> connectionState.set(model.getConnectionState()));
     }
 
     /**
-     * A public version of appendToChatArea
+     * Called when remote host has acknowledged a message. Shows the round-trip time of the message along
+     * with the median and 99th percentile of all round-trip times so far.
+     * @param message the message
+     * @param roundTripMillis the message's round-trip time in milliseconds
+     * @param medianMillis the median round-trip time
+     * @param p99Millis the 99th percentile round-trip time
+     * @param count the number of messages delivered
      */
-    public void displayMessage(String message) {
-        Platform.runLater(() -> appendToChatArea(message));
+    public void messageDelivered(String message, long roundTripMillis, long medianMillis, long p99Millis, long count) {
+        String excerpt = message.length() > 30 ? message.substring(0, 30) + "..." : message;
+        Platform.runLater(() -> deliveryText.setText(String.format(
+                "Delivered in %d ms: %s (median %d ms, 99th percentile %d ms over %d messages)",
+                roundTripMillis, excerpt, medianMillis, p99Millis, count)));
+    }
+
+    /**
+     * A public version of appendToChatArea. The message is put together on the JavaFX thread.
+     * @param pattern the message, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    public void displayMessage(String pattern, Object... args) {
+        var event = new ChatEvents.Display();
+        event.begin();
+
+        Platform.runLater(() -> {
+            String message = Log.format(pattern, args);
+            appendToChatArea(message);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = message.length();
+                event.commit();
+            }
+        });
+    }
+
+
+
+    /**
+     * Displays a part of a long message as soon as it has arrived: the first part starts a line, and the parts
+     * that follow are appended to it. Should anything else be displayed before the last part, the line is ended
+     * there, and the rest of the message goes on a line of its own.
+     * @param prefix what the line starts with, after the time stamp
+     * @param text the text of the part
+     * @param first true if the part starts the message
+     * @param last true if the part ends the message
+     */
+    public void displayMessagePart(String prefix, String text, boolean first, boolean last) {
+        var event = new ChatEvents.Display();
+        event.begin();
+
+        Platform.runLater(() -> {
+            if (first || openLineOffset < 0) {
+                endOpenLine();
+                openLineOffset = chatArea.getLength();
+                chatArea.appendText(String.format("%s %s%s", getTimeStamp(), first ? prefix : prefix + "(continued) ", text));
+            } else {
+                chatArea.appendText(text);
+            }
+            if (last) {
+                endOpenLine();
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = text.length();
+                event.commit();
+            }
+        });
     }
 
 
@@ -186,11 +330,44 @@ public class Controller {
      * @param message the message to be displayed
      */
     private void appendToChatArea(String message) {
-        chatArea.appendText(String.format(
+        endOpenLine();
+        String line = String.format(
                 "%s %s\n",
                 getTimeStamp(),
                 message
-        ));
+        );
+        int offset = chatArea.getLength();
+        chatArea.appendText(line);
+        transcriptIndex.add(offset, line);
+    }
+
+    /**
+     * Ends the line of a long message being displayed part by part, if there is one, and indexes it.
+     */
+    private void endOpenLine() {
+        if (openLineOffset < 0) {
+            return;
+        }
+        chatArea.appendText("\n");
+        transcriptIndex.add(openLineOffset, chatArea.getText(openLineOffset, chatArea.getLength()));
+        openLineOffset = -1;
+    }
+
+    /**
+     * Selects the current search match in the chat area (which scrolls it into view), and shows which
+     * match it is.
+     */
+    private void showSearchResult() {
+        if (searchResults.isEmpty()) {
+            searchStatusText.setText(searchQuery.isEmpty() ? "" : "No matches");
+            return;
+        }
+
+        TranscriptIndex.Match match = searchResults.get(searchPosition);
+        // leave out the line break
+        chatArea.selectRange(match.getOffset() + match.getLength() - 1, match.getOffset());
+        searchStatusText.setText(String.format("%d of %d%s", searchPosition + 1, searchResults.size(),
+                searchResults.size() == MAX_SEARCH_RESULTS ? "+" : ""));
     }
 
     /**
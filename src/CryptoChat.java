@@ -13,6 +13,17 @@ public class CryptoChat extends Application {
 
     private Controller controller;
 
+    /**
+     * Starts warming up the cryptography on a background thread, so that it is done, or well under way,
+     * by the time the user starts the first session.
+     */
+    @Override
+    public void init() {
+        Thread warmUpThread = new Thread(Cryptographer::warmUp);
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
     /**
      * Loads the fxml file that specifies the main scene layout.
      * User input triggers event handlers in the controller.
@@ -27,6 +38,7 @@ public class CryptoChat extends Application {
         primaryStage.setTitle("CryptoChat");
         primaryStage.setResizable(false);
         primaryStage.show();
+        StartupTimer.mark(StartupTimer.FIRST_WINDOW);
     }
 
     /**
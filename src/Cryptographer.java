@@ -1,27 +1,47 @@
 import javax.crypto.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Handles all cryptography (symmetric as well as asymmetric).
+ * Handles all cryptography (symmetric as well as asymmetric). The secret keys exchanged with remote host are
+ * not used to encrypt messages themselves, but to start a Ratchet in each direction, which derives a fresh
+ * key for every message. Every frame signed also gets a sequence number, and frames from remote host are
+ * only deciphered once, as told by their sequence numbers (see ReplayWindow). The parts of long messages
+ * are sealed with an authenticated cipher rather than signed, where the suite allows (see SealedPart).
+ * The symmetric cipher is chosen per session, from the suites both parties offer (see CipherSuite).
  */
 public class Cryptographer {
 
-    private static final String DEFAULT_KEY_GENERATOR_ALGORITHM = "Blowfish";
-    private static final String DEFAULT_TRANSFORMATION_SYMMETRIC = "Blowfish/ECB/PKCS5Padding";
-    private static final int DEFAULT_KEY_SIZE_SYMMETRIC = 448;
     private static final String DEFAULT_KEY_PAIR_GENERATOR_ALGORITHM = "RSA";
     private static final String DEFAULT_TRANSFORMATION_ASYMMETRIC = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
     private static final int DEFAULT_KEY_SIZE_ASYMMETRIC = 2048;
     private static final String DEFAULT_SIGNING_ALGORITHM = "SHA256withRSA";
 
+    /**
+     * Deciphers messages with a fixed set of keys. Can be used on any thread.
+     */
+    public interface Decipherer {
+        Object decipher(SignedObject signedObject, long sequence) throws Exception;
+
+        MessagePart open(SealedPart sealedPart, long sequence) throws Exception;
+    }
 
+    // a key pair generated in advance by warmUp, used by the first instance that needs one
+    private static final AtomicReference<KeyPair> preparedKeyPair = new AtomicReference<>();
 
-    private final String keyGenAlgorithm;
-    private final String transformationSym;
-    private final int keySizeSym;
+
+    // the suites offered to remote host, fastest first, and the one chosen (the first offered until then)
+    private final List<CipherSuite> offeredSuites;
+    private volatile CipherSuite suite;
     private final String keyPairGenAlgorithm;
     private final String transformationAsym;
     private final int keySizeAsym;
@@ -30,37 +50,91 @@ public class Cryptographer {
 
     private SecretKey ownSecretKey;
     private SecretKey othersSecretKey;
+    // derive the keys of the messages to and from remote host (the sending one is guarded by this)
+    private Ratchet sendingRatchet;
+    private volatile Ratchet receivingRatchet;
+    // fresh secret material to be mixed into the sending ratchet, and the same sealed for remote host
+    private SecretKey nextOwnSecretKey;
+    private SealedObject nextOwnSealedKey;
+    // the sequence number of the last frame signed (guarded by this), and those of the frames from remote host
+    private long sentSequence = 0;
+    private final ReplayWindow receivedSequences = new ReplayWindow();
     private PrivateKey ownPrivateKey;
     private PublicKey ownPublicKey;
     private PublicKey othersPublicKey;
+    // the names of the suites each party offered, as signed in authenticate
+    private List<String> ownOffer;
+    private List<String> othersOffer;
 
 
     public Cryptographer() {
-        this.keyGenAlgorithm = DEFAULT_KEY_GENERATOR_ALGORITHM;
-        this.transformationSym = DEFAULT_TRANSFORMATION_SYMMETRIC;
-        this.keySizeSym = DEFAULT_KEY_SIZE_SYMMETRIC;
+        this.offeredSuites = CipherSuite.getRanking();
+        this.suite = offeredSuites.get(0);
         this.keyPairGenAlgorithm = DEFAULT_KEY_PAIR_GENERATOR_ALGORITHM;
         this.transformationAsym = DEFAULT_TRANSFORMATION_ASYMMETRIC;
         this.keySizeAsym = DEFAULT_KEY_SIZE_ASYMMETRIC;
         this.signingAlgorithm = DEFAULT_SIGNING_ALGORITHM;
     }
 
-    public Cryptographer(String keyGenAlgorithm,
-                         String transformationSym,
-                         int keySizeSym,
+    /**
+     * @param suite the only symmetric cipher suite to offer to remote host
+     */
+    public Cryptographer(CipherSuite suite,
                          String keyPairGenAlgorithm,
                          String transformationAsym,
                          int keySizeAsym,
                          String signingAlgorithm) {
-        this.keyGenAlgorithm = keyGenAlgorithm;
-        this.transformationSym = transformationSym;
-        this.keySizeSym = keySizeSym;
+        this.offeredSuites = List.of(suite);
+        this.suite = suite;
         this.keyPairGenAlgorithm = keyPairGenAlgorithm;
         this.transformationAsym = transformationAsym;
         this.keySizeAsym = keySizeAsym;
         this.signingAlgorithm = signingAlgorithm;
     }
 
+    /**
+     * Loads the security providers and initializes everything a session uses (key generation, key exchange,
+     * ciphering, signing and the serialization of all of it) by running it once with the default algorithms
+     * and the preferred cipher suite on throwaway data. The key pair generated along the way is kept for the first session.
+     * Meant to be run on a background thread at startup, so the first handshake does not pay for all this.
+     */
+    public static void warmUp() {
+        try {
+            var cryptographer = new Cryptographer();
+            KeyPair keyPair = cryptographer.getKeyPair();
+            cryptographer.ownPrivateKey = keyPair.getPrivate();
+            cryptographer.ownPublicKey = cryptographer.othersPublicKey = keyPair.getPublic();
+            cryptographer.ownSecretKey = cryptographer.getSecretKey();
+
+            SealedObject encryptedKey = cryptographer.encryptKey(cryptographer.ownSecretKey);
+            cryptographer.othersSecretKey = cryptographer.decryptKey(encryptedKey);
+            cryptographer.startRatchets();
+            SequencedFrame message = cryptographer.cipher(new ChatMessage(0, "warm-up"));
+            Identity.fingerprint(keyPair.getPublic());
+
+            // what goes over the wire during a handshake and a message
+            var bytes = new ByteArrayOutputStream();
+            try (var oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(Command.MESSAGE);
+                oos.writeObject(keyPair.getPublic());
+                oos.writeObject(encryptedKey);
+                oos.writeObject(message.getPayload());
+            }
+            try (var ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                ois.readObject();
+                ois.readObject();
+                ois.readObject();
+                cryptographer.decipher((SignedObject) ois.readObject(), message.getSequence());
+            }
+
+            // the private key never left this method, so the key pair is as good as a freshly generated one
+            preparedKeyPair.set(keyPair);
+
+        } catch (Exception e) {
+            // warming up is an optimization only, any problem will surface again in the actual session
+        }
+    }
+
     /**
      * Exchanges secret keys with remote host by means of asymmetric cryptography.
      * @param ois the input stream on which to read objects sent from remote host
@@ -68,24 +142,31 @@ public class Cryptographer {
      * @throws Exception
      */
     public void exchangeKeys(ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
-
-        // generate a secret key for symmetric encryption and decryption of messages
-        ownSecretKey = getSecretKey();
+        var event = new ChatEvents.Handshake();
+        event.begin();
 
         // generate a key pair for asymmetric cryptography (used for the exchange of secret keys)
         KeyPair keyPair = getKeyPair();
         ownPrivateKey = keyPair.getPrivate();
         ownPublicKey = keyPair.getPublic();
 
-        // send public key to remote host (with which remote host will encrypt his secret key)
+        // send public key to remote host (with which remote host will encrypt his secret key),
+        // along with the cipher suites on offer
+        ownOffer = offeredSuites.stream().map(CipherSuite::getName).toList();
         oos.writeObject(ownPublicKey);
+        oos.writeObject(ownOffer.toArray(new String[0]));
         oos.flush();
 
-        // get remote host's public key
+        // get remote host's public key and suites, and settle on the suite both would have chosen
         othersPublicKey = (PublicKey) ois.readObject();
+        othersOffer = List.of((String[]) ois.readObject());
+        suite = CipherSuite.negotiate(ownOffer, othersOffer);
+
+        // generate a secret key for symmetric encryption and decryption of messages
+        ownSecretKey = getSecretKey();
 
         // encrypt own secret key using remote host's public key
-        SealedObject ownEncryptedKey = encrypt(ownSecretKey);
+        SealedObject ownEncryptedKey = encryptKey(ownSecretKey);
 
         // send encrypted key to remote host
         oos.writeObject(ownEncryptedKey);
@@ -96,49 +177,305 @@ public class Cryptographer {
 
         // decrypt remote host's encrypted secret key with own private key
         othersSecretKey = decryptKey(othersEncryptedKey);
+
+        // the keys are only needed to start the ratchets, so they do not outlive the first messages
+        startRatchets();
+        ownSecretKey = othersSecretKey = null;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.asymmetricAlgorithm = keyPairGenAlgorithm;
+            event.asymmetricKeySize = keySizeAsym;
+            event.symmetricAlgorithm = suite.getTransformation();
+            event.commit();
+        }
     }
 
     /**
-     *
-     * @return a hashed version of the own public key
+     * Proves to remote host that the keys just exchanged are the user's, and checks remote host's proof that they
+     * are remote host's: each party signs the public keys of both parties, its own first, with the key of its
+     * identity, and sends the signature along with the identity's public key. A man in the middle, who would
+     * have exchanged keys of its own with either party, cannot sign these for the other. The cipher suites
+     * offered are signed along with the keys, so that neither offer can be pared down to a weaker suite on the
+     * way. Follows exchangeKeys.
+     * @param identity the user's identity
+     * @param ois the input stream on which to read objects sent from remote host
+     * @param oos the output stream to which to write objects to remote host
+     * @return the public key of remote host's identity
+     * @throws FailedVerificationException if remote host's proof does not verify
+     * @throws Exception if the proof could not be sent or read
      */
-    public String getOwnPublicKey() throws NoSuchAlgorithmException {
-        if (ownPublicKey == null) {
-            throw new IllegalStateException("Own public key has not been generated yet.");
+    public PublicKey authenticate(Identity identity, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
+        oos.writeObject(identity.getPublicKey());
+        oos.writeObject(identity.sign(handshakeKeys(ownPublicKey, othersPublicKey, ownOffer, othersOffer)));
+        oos.flush();
+
+        PublicKey othersIdentity = (PublicKey) ois.readObject();
+        byte[] signature = (byte[]) ois.readObject();
+        try {
+            if (Identity.verify(othersIdentity, handshakeKeys(othersPublicKey, ownPublicKey, othersOffer, ownOffer), signature)) {
+                return othersIdentity;
+            }
+        } catch (GeneralSecurityException e) {
+            // an identity key of the wrong kind, or a malformed signature
         }
-        return writeBytesInBase64(digest(ownPublicKey.getEncoded()));
+        throw new FailedVerificationException();
     }
 
     /**
-     * @return a hashed version of the other's public key
+     * @return what a party signs with its identity key: a label, then its own and the other's public key, then
+     * its own and the other's offer of cipher suites
      */
-    public String getOthersPublicKey() throws NoSuchAlgorithmException {
-        if (ownPublicKey == null) {
-            throw new IllegalStateException("Other's public key has not been retrieved yet.");
+    private static byte[] handshakeKeys(PublicKey signersKey, PublicKey othersKey,
+                                        List<String> signersOffer, List<String> othersOffer) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeUTF("cryptochat handshake");
+            for (PublicKey key : new PublicKey[] {signersKey, othersKey}) {
+                byte[] encoded = key.getEncoded();
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            for (List<String> offer : List.of(signersOffer, othersOffer)) {
+                out.writeInt(offer.size());
+                for (String name : offer) {
+                    out.writeUTF(name);
+                }
+            }
         }
-        return writeBytesInBase64(digest(othersPublicKey.getEncoded()));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Generates fresh secret material to be mixed into the sending ratchet, and seals it for remote host with
+     * remote host's public key. Does not affect ciphering, so it can be run in the background.
+     * @throws Exception if the material could not be generated or sealed
+     */
+    public void prepareRekey() throws Exception {
+        SecretKey secretKey = getSecretKey();
+        nextOwnSealedKey = encryptKey(secretKey);
+        nextOwnSecretKey = secretKey;
+    }
+
+    /**
+     * Mixes the material generated by prepareRekey into the sending ratchet. Messages ciphered from here on
+     * can only be deciphered by remote host once it has read the returned frame, so it must be written before
+     * any of them.
+     * @return the frame to send to remote host: the sealed material and the length of the replaced chain, signed
+     * @throws Exception if the frame could not be signed or the keys derived
+     */
+    public SequencedFrame completeRekey() throws Exception {
+        if (nextOwnSecretKey == null) {
+            throw new IllegalStateException("No rekey has been prepared.");
+        }
+        SequencedFrame frame;
+        synchronized (this) {
+            int length = sendingRatchet.getIndex();
+            long sequence = ++sentSequence;
+            frame = new SequencedFrame(sequence, sign(new Envelope(sequence, length, nextOwnSealedKey)));
+            sendingRatchet = sendingRatchet.mix(length, nextOwnSecretKey.getEncoded());
+        }
+        nextOwnSecretKey = null;
+        nextOwnSealedKey = null;
+        return frame;
+    }
+
+    /**
+     * Mixes the material sent by remote host into the receiving ratchet. All messages from remote host that
+     * follow the frame are ciphered with keys from the new chain; decipherers obtained before keep using the
+     * old one.
+     * @param frame the frame returned by remote host's completeRekey
+     * @param sequence the sequence number given along with the frame
+     * @throws FailedVerificationException if the frame could not be verified, or carries another sequence number
+     * @throws Exception if the frame could not be decrypted
+     */
+    public void acceptRekey(SignedObject frame, long sequence) throws Exception {
+        Envelope envelope = verify(frame, othersPublicKey);
+        checkSequence(envelope, sequence);
+        SecretKey secretKey = decryptKey(envelope.getSealedObject());
+        receivingRatchet = receivingRatchet.mix(envelope.getIndex(), secretKey.getEncoded());
     }
 
     /**
      * Encrypts the given message with user's secret key, then signs it with user's
      * own private key.
-     * @param message the message to be ciphered
-     * @return the ciphered message
+     * @param message the message to be ciphered (usually a String)
+     * @return the ciphered message, with its sequence number
      * @throws Exception
      */
-    public SignedObject cipher(String message) throws Exception {
-        return sign(encrypt(message));
+    public SequencedFrame cipher(Serializable message) throws Exception {
+        var event = new ChatEvents.Cipher();
+        event.begin();
+        Ratchet.MessageKey messageKey;
+        long sequence;
+        synchronized (this) {
+            messageKey = sendingRatchet.next();
+            sequence = ++sentSequence;
+        }
+        SignedObject signedObject = sign(new Envelope(sequence, messageKey.getIndex(), encrypt(message, messageKey.getKey())));
+        commitCipherEvent(event, "cipher", message);
+        return new SequencedFrame(sequence, signedObject);
+    }
+
+    /**
+     * Encrypts a part of a long message with an authenticated cipher, under the next key of the sending
+     * ratchet, rather than signing it (see SealedPart). If the suite chosen does not authenticate, the part is
+     * ciphered (and signed) like any other message instead.
+     * @param part a part other than the last (which must be signed)
+     * @return the ciphered part, with its sequence number
+     * @throws Exception if the part could not be encrypted
+     */
+    public SequencedFrame seal(MessagePart part) throws Exception {
+        if (!suite.isAuthenticated()) {
+            return cipher(part);
+        }
+
+        var event = new ChatEvents.Cipher();
+        event.begin();
+        Ratchet.MessageKey messageKey;
+        long sequence;
+        synchronized (this) {
+            messageKey = sendingRatchet.next();
+            sequence = ++sentSequence;
+        }
+        var bytes = new ByteArrayOutputStream();
+        try (var oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(part);
+        }
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, messageKey.getKey());
+        cipher.updateAAD(associatedData(sequence, messageKey.getIndex()));
+        var sealedPart = new SealedPart(messageKey.getIndex(), cipher.getIV(), cipher.doFinal(bytes.toByteArray()));
+        commitCipherEvent(event, "seal", part);
+        return new SequencedFrame(sequence, sealedPart);
     }
 
     /**
      * Verifies the signature with remote host's public key, then decrypts it with
      * remote host's secret key.
      * @param signedObject
-     * @return
+     * @param sequence the sequence number given along with the message
+     * @return the deciphered message, to be cast by the caller to the type it expects
      * @throws Exception
      */
-    public String decipher(SignedObject signedObject) throws Exception {
-        return decryptMessage(verify(signedObject));
+    public Object decipher(SignedObject signedObject, long sequence) throws Exception {
+        return decipher(signedObject, sequence, othersPublicKey, receivingRatchet);
+    }
+
+    /**
+     * Records the sequence number given along with the first chunk of a frame from remote host, so that a
+     * replayed frame can be turned away before it is read in full, let alone verified. The number is taken
+     * there rather than once the frame has been verified, as the frames that overtake a long one while it is
+     * being read would otherwise move the window on past it. The frame must still verify with that number
+     * (see checkSequence), and a frame that does not ends the session, so a forged chunk cannot take a
+     * number away from a genuine frame.
+     * @param sequence the sequence number, not verified yet
+     * @return false if a frame with that sequence number has been received before, or is too old to tell
+     */
+    public boolean reserveSequence(long sequence) {
+        return receivedSequences.accept(sequence);
+    }
+
+    /**
+     * Captures remote host's current keys, so that messages can be deciphered on another thread, and keep
+     * being deciphered with the right keys even if remote host switches to new ones in the meantime.
+     * @return a Decipherer for messages sent before remote host's next rekey
+     */
+    public Decipherer currentDecipherer() {
+        Ratchet ratchet = receivingRatchet;
+        PublicKey publicKey = othersPublicKey;
+        return new Decipherer() {
+            @Override
+            public Object decipher(SignedObject signedObject, long sequence) throws Exception {
+                return Cryptographer.this.decipher(signedObject, sequence, publicKey, ratchet);
+            }
+
+            @Override
+            public MessagePart open(SealedPart sealedPart, long sequence) throws Exception {
+                return Cryptographer.this.open(sealedPart, sequence, ratchet);
+            }
+        };
+    }
+
+
+    /**
+     * Verifies a message with remote host's public key, and decrypts it with the key of the message
+     * from remote host's ratchet.
+     */
+    private Object decipher(SignedObject signedObject, long sequence, PublicKey publicKey, Ratchet ratchet) throws Exception {
+        var event = new ChatEvents.Cipher();
+        event.begin();
+        Envelope envelope = verify(signedObject, publicKey);
+        checkSequence(envelope, sequence);
+        Object message = decryptMessage(envelope.getSealedObject(), ratchet.keyFor(envelope.getIndex()));
+        commitCipherEvent(event, "decipher", message);
+        return message;
+    }
+
+    /**
+     * Decrypts a part of a long message sealed by remote host's seal, with the key of the part from remote
+     * host's ratchet, which also authenticates the part along with the given sequence number.
+     * @throws FailedVerificationException if the part does not authenticate, or the suite cannot authenticate
+     * (in which case remote host should have signed the part)
+     */
+    private MessagePart open(SealedPart sealedPart, long sequence, Ratchet ratchet) throws Exception {
+        if (!suite.isAuthenticated()) {
+            throw new FailedVerificationException();
+        }
+
+        var event = new ChatEvents.Cipher();
+        event.begin();
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.DECRYPT_MODE, ratchet.keyFor(sealedPart.getIndex()), suite.getParameters(sealedPart.getIv()));
+        cipher.updateAAD(associatedData(sequence, sealedPart.getIndex()));
+        byte[] bytes;
+        try {
+            bytes = cipher.doFinal(sealedPart.getCiphertext());
+        } catch (AEADBadTagException e) {
+            throw new FailedVerificationException();
+        }
+        MessagePart part;
+        try (var ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            part = (MessagePart) ois.readObject();
+        }
+        commitCipherEvent(event, "open", part);
+        return part;
+    }
+
+    /**
+     * @return what a sealed part is authenticated along with: the frame's sequence number and the index of its key
+     */
+    private static byte[] associatedData(long sequence, int index) {
+        return ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(sequence).putInt(index).array();
+    }
+
+    /**
+     * Checks the sequence number of a verified frame against the one given along with it, which was
+     * reserved when the frame's first chunk was read (see reserveSequence).
+     * @param envelope the verified content of the frame
+     * @param sequence the sequence number given along with the frame
+     * @throws FailedVerificationException if the two do not match
+     */
+    private static void checkSequence(Envelope envelope, long sequence) throws FailedVerificationException {
+        if (envelope.getSequence() != sequence) {
+            throw new FailedVerificationException();
+        }
+    }
+
+    private static void commitCipherEvent(ChatEvents.Cipher event, String operation, Object message) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.payloadType = message.getClass().getSimpleName();
+            if (message instanceof String text) {
+                event.textLength = text.length();
+            } else if (message instanceof ChatMessage chatMessage) {
+                event.textLength = chatMessage.getText().length();
+            } else if (message instanceof MessagePart part) {
+                event.textLength = part.getText().length();
+            }
+            event.commit();
+        }
     }
 
 
@@ -150,31 +487,45 @@ public class Cryptographer {
      * @throws NoSuchAlgorithmException if e.g. the algorithm is not supported
      */
     private SecretKey getSecretKey() throws NoSuchAlgorithmException {
-        var keyGenerator = KeyGenerator.getInstance(keyGenAlgorithm);
-        keyGenerator.init(keySizeSym, new SecureRandom());
+        var keyGenerator = KeyGenerator.getInstance(suite.getKeyAlgorithm());
+        keyGenerator.init(suite.getKeySize(), new SecureRandom());
         return keyGenerator.generateKey();
     }
 
+    /**
+     * Starts the ratchets in both directions from the own and remote host's secret keys.
+     */
+    private void startRatchets() throws GeneralSecurityException {
+        sendingRatchet = newRatchet(ownSecretKey);
+        receivingRatchet = newRatchet(othersSecretKey);
+    }
+
+    private Ratchet newRatchet(SecretKey secretKey) throws GeneralSecurityException {
+        return new Ratchet(secretKey.getEncoded(), suite.getKeyAlgorithm(), suite.getKeySize());
+    }
+
     /**
      *
-     * @param message the unencrypted String
-     * @return the encrypted String
+     * @param message the unencrypted message
+     * @param secretKey the key of the message
+     * @return the encrypted message
      * @throws Exception if the encryption failed for any reason
      */
-    private SealedObject encrypt(String message) throws Exception {
-        Cipher cipher = Cipher.getInstance(transformationSym);
-        cipher.init(Cipher.ENCRYPT_MODE, ownSecretKey);
+    private SealedObject encrypt(Serializable message, SecretKey secretKey) throws Exception {
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
         return new SealedObject(message, cipher);
     }
 
     /**
      *
-     * @param sealedObject the encrypted String object
-     * @return the decrypted String
+     * @param sealedObject the encrypted message object
+     * @param secretKey remote host's secret key
+     * @return the decrypted message
      * @throws Exception if the decryption failed for any reason
      */
-    private String decryptMessage(SealedObject sealedObject) throws Exception {
-        return (String) sealedObject.getObject(othersSecretKey);
+    private static Object decryptMessage(SealedObject sealedObject, SecretKey secretKey) throws Exception {
+        return sealedObject.getObject(secretKey);
     }
 
 
@@ -187,12 +538,19 @@ public class Cryptographer {
      * is not supported.
      */
     private KeyPair getKeyPair() throws Exception {
+        if (keyPairGenAlgorithm.equals(DEFAULT_KEY_PAIR_GENERATOR_ALGORITHM) && keySizeAsym == DEFAULT_KEY_SIZE_ASYMMETRIC) {
+            KeyPair keyPair = preparedKeyPair.getAndSet(null);
+            if (keyPair != null) {
+                return keyPair;
+            }
+        }
+
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyPairGenAlgorithm);
         keyGen.initialize(keySizeAsym, new SecureRandom());
         return keyGen.generateKeyPair();
     }
 
-    private SealedObject encrypt(SecretKey secretKey) throws Exception {
+    private SealedObject encryptKey(SecretKey secretKey) throws Exception {
         Cipher cipher = Cipher.getInstance(transformationAsym);
         cipher.init(Cipher.ENCRYPT_MODE, othersPublicKey);
         return new SealedObject(secretKey, cipher);
@@ -202,48 +560,24 @@ public class Cryptographer {
         return (SecretKey) sealedObject.getObject(ownPrivateKey);
     }
 
-    private SignedObject sign(SealedObject sealedObject) throws Exception {
+    private SignedObject sign(Envelope envelope) throws Exception {
         Signature signingEngine = Signature.getInstance(signingAlgorithm);
-        return new SignedObject(sealedObject, ownPrivateKey, signingEngine);
+        return new SignedObject(envelope, ownPrivateKey, signingEngine);
     }
 
     /**
      * Verifies the signature of an encrypted message with remote host's public key
      * @param signedObject the message to be verified
+     * @param publicKey remote host's public key
      * @return the verified (encrypted) message
      * @throws FailedVerificationException if the message could not be verified with remote host's public key
      * @throws Exception if the verification failed for any other reason
      */
-    private SealedObject verify(SignedObject signedObject) throws Exception {
+    private Envelope verify(SignedObject signedObject, PublicKey publicKey) throws Exception {
         Signature verificationEngine = Signature.getInstance(signingAlgorithm);
-        if (signedObject.verify(othersPublicKey, verificationEngine)) {
-            return (SealedObject) signedObject.getObject();
+        if (signedObject.verify(publicKey, verificationEngine)) {
+            return (Envelope) signedObject.getObject();
         }
         throw new FailedVerificationException();
     }
-
-
-    // other helper methods //
-
-    /**
-     * Encodes the passed public key using Base64 MIME encoding.
-     * @param data the data to encode
-     * @return the Base64 representation as a String
-     */
-    private String writeBytesInBase64(byte[] data) {
-        var encoder = Base64.getMimeEncoder();
-        return encoder.encodeToString(data);
-    }
-
-    /**
-     * Generates an MD5 hash of the passed data (e.g. a public key)
-     * @param data the data to be digested
-     * @return the digested data
-     * @throws NoSuchAlgorithmException if e.g. the algorithm is not supported
-     */
-    private byte[] digest(byte[] data) throws NoSuchAlgorithmException {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(data);
-            return md.digest();
-    }
 }
@@ -0,0 +1,36 @@
+import javax.crypto.SealedObject;
+import java.io.Serializable;
+
+/**
+ * What is signed in a frame: the encrypted payload, along with the index that tells remote host which key of
+ * the sender's Ratchet it was encrypted with. For a REKEY, the payload is the fresh secret material, encrypted
+ * with remote host's public key, and the index is the number of messages sent with the chain it replaces.
+ * The sequence number counts the frames signed by the sender over the whole session, across rekeys, so that
+ * remote host can tell a replayed frame (see ReplayWindow).
+ */
+public class Envelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+    private final int index;
+    private final SealedObject sealedObject;
+
+    public Envelope(long sequence, int index, SealedObject sealedObject) {
+        this.sequence = sequence;
+        this.index = index;
+        this.sealedObject = sealedObject;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public SealedObject getSealedObject() {
+        return sealedObject;
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * The user's long-lived identity: a key pair that is generated once and kept in the data directory, unlike the
+ * keys of a session, which are thrown away with it. In every session, each party signs the session's keys with
+ * its identity key (see Cryptographer.authenticate), so remote host knows that it is talking to the same user as
+ * before, and remote host is known by the fingerprint of its identity's public key (see KnownPeers).
+ * The initiator of a session announces its identity before anything else is sent, so that remote host can tell
+ * a known peer before deciding whether to accept; the announcement is only a claim until the handshake has
+ * been signed with the matching private key.
+ */
+public class Identity {
+
+    private static final Log log = Log.forClass(Identity.class);
+
+    private static final String KEY_PAIR_ALGORITHM = "RSA";
+    private static final int KEY_SIZE = 2048;
+    private static final String SIGNING_ALGORITHM = "SHA256withRSA";
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+    // starts an announcement ("CCID"), so that a peer that does not send one is told at once
+    private static final int ANNOUNCEMENT_MAGIC = 0x43434944;
+    private static final int MAX_KEY_LENGTH = 4096;
+    // how long to wait for the announcement of an incoming connection
+    private static final int ANNOUNCEMENT_TIMEOUT = 5000;
+
+    private final PrivateKey privateKey;
+    private final PublicKey publicKey;
+    private final String fingerprint;
+
+    private Identity(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+        this.fingerprint = fingerprint(publicKey);
+    }
+
+    /**
+     * Reads the identity kept in a file, or generates one and keeps it there if there is none yet.
+     * The file is only readable by its owner, where the file system supports that.
+     * @param file the file in which the identity is kept
+     * @return the identity
+     * @throws IOException if the file could not be read or written
+     * @throws GeneralSecurityException if the file does not hold a valid key pair, or none could be generated
+     */
+    public static Identity load(Path file) throws IOException, GeneralSecurityException {
+        KeyFactory keyFactory = KeyFactory.getInstance(KEY_PAIR_ALGORITHM);
+        if (Files.exists(file)) {
+            try (var in = new DataInputStream(Files.newInputStream(file))) {
+                PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(readKey(in)));
+                PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(readKey(in)));
+                return new Identity(privateKey, publicKey);
+            }
+        }
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_PAIR_ALGORITHM);
+        keyGen.initialize(KEY_SIZE, new SecureRandom());
+        KeyPair keyPair = keyGen.generateKeyPair();
+
+        // written in full to a temporary file first, so a crash cannot leave half an identity behind
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try {
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temporary);
+        }
+        try (var out = new DataOutputStream(Files.newOutputStream(temporary))) {
+            writeKey(out, keyPair.getPublic().getEncoded());
+            writeKey(out, keyPair.getPrivate().getEncoded());
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+        Identity identity = new Identity(keyPair.getPrivate(), keyPair.getPublic());
+        log.info("Generated a new identity {} in {}", identity.getFingerprint(), file);
+        return identity;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return the fingerprint by which remote hosts know the user
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param data the data to sign
+     * @return the signature of the data with the identity's private key
+     * @throws GeneralSecurityException if the data could not be signed
+     */
+    public byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNING_ALGORITHM);
+        signature.initSign(privateKey);
+        signature.update(data);
+        return signature.sign();
+    }
+
+    /**
+     * @param publicKey the public key of remote host's identity
+     * @param data the data that remote host is supposed to have signed
+     * @param signature the signature
+     * @return true if the signature is remote host's
+     * @throws GeneralSecurityException if the signature could not be checked, e.g. the key is of the wrong kind
+     */
+    public static boolean verify(PublicKey publicKey, byte[] data, byte[] signature) throws GeneralSecurityException {
+        Signature verification = Signature.getInstance(SIGNING_ALGORITHM);
+        verification.initVerify(publicKey);
+        verification.update(data);
+        return verification.verify(signature);
+    }
+
+    /**
+     * @param publicKey the public key of an identity
+     * @return the SHA-256 hash of the key, in Base64
+     */
+    public static String fingerprint(PublicKey publicKey) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(publicKey.getEncoded());
+        return Base64.getEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    /**
+     * Announces the identity to remote host. Written before the object streams of the session are opened.
+     * @param out the connection's output stream
+     */
+    public void announce(OutputStream out) throws IOException {
+        var data = new DataOutputStream(out);
+        data.writeInt(ANNOUNCEMENT_MAGIC);
+        writeKey(data, publicKey.getEncoded());
+        data.flush();
+    }
+
+    /**
+     * Reads the identity that the initiator of an incoming connection announces, before anything else is read
+     * from the connection. Waits for ANNOUNCEMENT_TIMEOUT ms at most in all, however slowly the announcement
+     * trickles in, so that a remote host cannot hold up the reading thread for longer.
+     * @param connection the incoming connection
+     * @return the public key of the announced identity, not verified yet
+     * @throws IOException if no valid announcement arrives in time
+     */
+    public static PublicKey readAnnouncement(Transport.Connection connection) throws IOException {
+        long deadline = System.nanoTime() + ANNOUNCEMENT_TIMEOUT * 1_000_000L;
+        // not buffered, so nothing beyond the announcement is taken from the connection; each read only waits
+        // for what is left of the timeout
+        var in = new DataInputStream(new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                setTimeLeft();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                setTimeLeft();
+                return super.read(b, off, len);
+            }
+
+            private void setTimeLeft() throws IOException {
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0) {
+                    throw new SocketTimeoutException("No identity announced in time");
+                }
+                connection.setReadTimeout((int) left);
+            }
+        });
+        if (in.readInt() != ANNOUNCEMENT_MAGIC) {
+            throw new IOException("No identity announced");
+        }
+        try {
+            return KeyFactory.getInstance(KEY_PAIR_ALGORITHM).generatePublic(new X509EncodedKeySpec(readKey(in)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Bad identity announced", e);
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        out.writeShort(key.length);
+        out.write(key);
+    }
+
+    private static byte[] readKey(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length == 0 || length > MAX_KEY_LENGTH) {
+            throw new IOException("Bad key length " + length);
+        }
+        byte[] key = new byte[length];
+        in.readFully(key);
+        return key;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The peers whose invites the user has chosen to always accept, by the fingerprint of their identity (see
+ * Identity). Kept in a text file in the data directory, one peer per line: the fingerprint, the time the peer was
+ * added (in ms since the epoch) and the address it was added from, separated by spaces. Lines starting with
+ * "#" are ignored, and a peer can be removed by deleting its line while the application is not running.
+ * The file is read once, into an index by fingerprint, so looking up the remote host of an incoming connection
+ * does not touch the disk; peers added later are appended to the file as well as to the index.
+ */
+public class KnownPeers {
+
+    private static final Log log = Log.forClass(KnownPeers.class);
+
+    /**
+     * A peer the user has chosen to trust.
+     */
+    public static class Peer {
+        private final String fingerprint;
+        private final long added;
+        private final String address;
+
+        private Peer(String fingerprint, long added, String address) {
+            this.fingerprint = fingerprint;
+            this.added = added;
+            this.address = address;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return when the peer was added, in ms since the epoch
+         */
+        public long getAdded() {
+            return added;
+        }
+
+        /**
+         * @return the address the peer was added from; the peer is known wherever it connects from
+         */
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the known peers from a file, if it exists.
+     * @param file the file in which the peers are kept
+     * @throws IOException if the file exists but could not be read
+     */
+    public KnownPeers(Path file) throws IOException {
+        this.file = file;
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(" ", 3);
+            try {
+                peers.put(fields[0], new Peer(fields[0], Long.parseLong(fields[1]), fields.length > 2 ? fields[2] : ""));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                log.warn("Ignoring line {} of {}, which is not of the form \"fingerprint time address\"", i + 1, file);
+            }
+        }
+    }
+
+    /**
+     * @param fingerprint the fingerprint of an identity
+     * @return true if the user has chosen to trust the identity
+     */
+    public boolean contains(String fingerprint) {
+        return peers.containsKey(fingerprint);
+    }
+
+    /**
+     * @param fingerprint the fingerprint of an identity
+     * @return the peer with the identity, or null if the user has not chosen to trust it
+     */
+    public Peer get(String fingerprint) {
+        return peers.get(fingerprint);
+    }
+
+    /**
+     * Adds a peer, both to the index and to the file, unless it is known already.
+     * @param fingerprint the fingerprint of the peer's identity
+     * @param address the address the peer is connected from, for the user's reference
+     * @throws IOException if the peer could not be written to the file; it is known until the application exits
+     */
+    public synchronized void add(String fingerprint, String address) throws IOException {
+        if (peers.containsKey(fingerprint)) {
+            return;
+        }
+        Peer peer = new Peer(fingerprint, System.currentTimeMillis(), address.replaceAll("\\s", "_"));
+        peers.put(fingerprint, peer);
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        String line = peer.getFingerprint() + " " + peer.getAdded() + " " + peer.getAddress() + System.lineSeparator();
+        Files.writeString(file, line, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous event log. Each event has a level, a source (the class that logged it), the thread it was
+ * logged on, a time and a message pattern whose "{}" placeholders are filled in with the event's arguments;
+ * a Throwable given as the last argument, beyond the placeholders, is logged with its stack trace.
+ * Events are put into a ring buffer of fixed size and written by a background thread, which is also where
+ * the message is formatted, so a logging thread never waits for the console or the disk. Events below the
+ * configured level are discarded before anything is done with their arguments, and events that find the
+ * buffer full are dropped and counted rather than waited for.
+ * A discarded event with up to two arguments costs a check of its level and nothing else; one with more
+ * arguments costs the array the compiler puts them in. Arguments of primitive types are boxed by the caller
+ * either way, so a hot path that logs them checks isEnabled first.
+ * The level is set by the system property cryptochat.log.level (ERROR, WARN, INFO or DEBUG, WARN by default);
+ * events go to standard error unless the property cryptochat.log.file names a file to append them to.
+ */
+public final class Log {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("cryptochat.log.level", "WARN").toUpperCase());
+    private static final String FILE = System.getProperty("cryptochat.log.file");
+    // a power of two, so that a sequence number maps to a slot by masking
+    private static final int CAPACITY = 8192;
+    // how long the shutdown hook waits for the remaining events to be written
+    private static final long SHUTDOWN_TIMEOUT = 1000;
+    private static final Object[] NO_ARGUMENTS = {};
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /* // the ring buffer: a slot is free for sequence number s when its sequence is s, and filled when it is s + 1 */
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread writerThread;
+    private static volatile boolean writerWaiting = false;
+    private static volatile boolean shuttingDown = false;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i);
+        }
+
+        writerThread = new Thread(Log::writeEvents, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shuttingDown = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                // exit anyway
+            }
+        }));
+    }
+
+    private final String source;
+
+
+    private Log(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @param source the class whose events are to be logged
+     * @return a log for the events of that class
+     */
+    public static Log forClass(Class<?> source) {
+        return new Log(source.getName());
+    }
+
+    /**
+     * @return true if events of the given level are logged at all
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    /*
+    // one method per level and number of arguments, so that an event with up to two arguments allocates nothing
+    // unless its level is enabled
+     */
+
+    public void error(String pattern) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, pattern, NO_ARGUMENTS);
+        }
+    }
+
+    public void error(String pattern, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, pattern, new Object[] {arg});
+        }
+    }
+
+    public void error(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, pattern, new Object[] {arg1, arg2});
+        }
+    }
+
+    public void error(String pattern, Object... args) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, pattern, args);
+        }
+    }
+
+    public void warn(String pattern) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, pattern, NO_ARGUMENTS);
+        }
+    }
+
+    public void warn(String pattern, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, pattern, new Object[] {arg});
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, pattern, new Object[] {arg1, arg2});
+        }
+    }
+
+    public void warn(String pattern, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, pattern, args);
+        }
+    }
+
+    public void info(String pattern) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, pattern, NO_ARGUMENTS);
+        }
+    }
+
+    public void info(String pattern, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, pattern, new Object[] {arg});
+        }
+    }
+
+    public void info(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, pattern, new Object[] {arg1, arg2});
+        }
+    }
+
+    public void info(String pattern, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, pattern, args);
+        }
+    }
+
+    public void debug(String pattern) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, pattern, NO_ARGUMENTS);
+        }
+    }
+
+    public void debug(String pattern, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, pattern, new Object[] {arg});
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, pattern, new Object[] {arg1, arg2});
+        }
+    }
+
+    public void debug(String pattern, Object... args) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, pattern, args);
+        }
+    }
+
+    /**
+     * Puts an event into the ring buffer, or drops it if the buffer is full. Never blocks.
+     */
+    private void log(Level level, String pattern, Object[] args) {
+        long time = System.currentTimeMillis();
+        while (true) {
+            long sequence = nextSequence.get();
+            Slot slot = slots[(int) sequence & (CAPACITY - 1)];
+            long available = slot.sequence - sequence;
+
+            if (available < 0) {
+                // the writer has not caught up with the slot yet
+                dropped.incrementAndGet();
+                return;
+            }
+            if (available == 0 && nextSequence.compareAndSet(sequence, sequence + 1)) {
+                slot.time = time;
+                slot.level = level;
+                slot.source = source;
+                slot.thread = Thread.currentThread().getName();
+                slot.pattern = pattern;
+                slot.args = args;
+                // publishes the fields above to the writer
+                slot.sequence = sequence + 1;
+
+                if (writerWaiting) {
+                    LockSupport.unpark(writerThread);
+                }
+                return;
+            }
+            // another thread has claimed the slot in the meantime, try the next one
+        }
+    }
+
+    /**
+     * Run on the writer thread: formats and writes events as they come in, and flushes whenever it runs out.
+     */
+    private static void writeEvents() {
+        Writer out = openOutput();
+        long sequence = 0;
+        long droppedReported = 0;
+
+        while (true) {
+            Slot slot = slots[(int) sequence & (CAPACITY - 1)];
+            try {
+                if (slot.sequence == sequence + 1) {
+                    String line = format(slot);
+                    slot.args = null;
+                    slot.sequence = sequence + CAPACITY;
+                    sequence++;
+                    out.write(line);
+                    continue;
+                }
+
+                long droppedNow = dropped.get();
+                if (droppedNow != droppedReported) {
+                    out.write(TIME_FORMAT.format(Instant.now()) + " WARN  [log-writer] " + Log.class.getName()
+                            + ": " + (droppedNow - droppedReported) + " event(s) dropped, the log could not keep up"
+                            + System.lineSeparator());
+                    droppedReported = droppedNow;
+                }
+                out.flush();
+            } catch (IOException e) {
+                // nowhere left to report it; the events keep being consumed so that logging threads never block
+            }
+
+            if (shuttingDown) {
+                return;
+            }
+            writerWaiting = true;
+            if (slot.sequence != sequence + 1) {
+                LockSupport.park();
+            }
+            writerWaiting = false;
+        }
+    }
+
+    private static Writer openOutput() {
+        if (FILE != null) {
+            try {
+                return new OutputStreamWriter(new FileOutputStream(FILE, true), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("Could not open log file " + FILE + ", logging to standard error instead: " + e);
+            }
+        }
+        return new OutputStreamWriter(System.err);
+    }
+
+    /**
+     * Formats an event as a line (followed by a stack trace, if the event has a Throwable).
+     */
+    private static String format(Slot slot) {
+        StringBuilder line = new StringBuilder(128);
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(slot.time)))
+                .append(' ').append(String.format("%-5s", slot.level))
+                .append(" [").append(slot.thread).append("] ")
+                .append(slot.source).append(": ");
+        Throwable throwable = appendMessage(line, slot.pattern, slot.args);
+        line.append(System.lineSeparator());
+
+        if (throwable != null) {
+            StringWriter stackTrace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(stackTrace));
+            line.append(stackTrace);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Fills in the placeholders of a pattern. Also used to format the status messages shown to the user,
+     * which are passed around in the same way.
+     * @param pattern the message, with a "{}" for each argument
+     * @param args the arguments
+     * @return the formatted message
+     */
+    public static String format(String pattern, Object... args) {
+        StringBuilder message = new StringBuilder(pattern.length() + 32);
+        appendMessage(message, pattern, args);
+        return message.toString();
+    }
+
+    /**
+     * @return the Throwable given as the last argument beyond the placeholders, or null
+     */
+    private static Throwable appendMessage(StringBuilder message, String pattern, Object[] args) {
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = pattern.indexOf("{}", start)) >= 0 && argument < args.length) {
+            message.append(pattern, start, placeholder).append(args[argument++]);
+            start = placeholder + 2;
+        }
+        message.append(pattern, start, pattern.length());
+
+        if (argument < args.length && args[args.length - 1] instanceof Throwable) {
+            return (Throwable) args[args.length - 1];
+        }
+        return null;
+    }
+
+    private static class Slot {
+        private volatile long sequence;
+        private long time;
+        private Level level;
+        private String source;
+        private String thread;
+        private String pattern;
+        private Object[] args;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
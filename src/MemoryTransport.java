@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory transport, connecting two endpoints in the same JVM through a pair of bounded byte pipes.
+ * Addresses are of the form "mem:name". Nothing goes through the kernel, so handshakes and messages can be
+ * benchmarked without the noise of the network stack, and tests need no free ports.
+ */
+public class MemoryTransport implements Transport {
+
+    // the number of bytes that can be written before the writer blocks until the reader catches up
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private static final Map<String, MemoryListener> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public Connection connect(String address, int port, int timeout) throws IOException {
+        MemoryListener listener = listeners.get(address);
+        if (listener == null) {
+            throw new ConnectException("Connection refused: " + address);
+        }
+
+        Pipe toListener = new Pipe();
+        Pipe toConnector = new Pipe();
+        PipeConnection connection = new PipeConnection(toConnector, toListener, address);
+        listener.pending.add(new PipeConnection(toListener, toConnector, address));
+        return connection;
+    }
+
+    @Override
+    public Listener listen(String address, int port) throws IOException {
+        MemoryListener listener = new MemoryListener(address);
+        if (listeners.putIfAbsent(address, listener) != null) {
+            throw new BindException("Address already in use: " + address);
+        }
+        return listener;
+    }
+
+
+    /**
+     * A bounded ring buffer of bytes, written by one end of a connection and read by the other.
+     */
+    private static class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+        private int head = 0;
+        private int count = 0;
+        private boolean writerClosed = false;
+        private boolean readerClosed = false;
+
+        private synchronized int read(byte[] b, int off, int len, int timeout) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            long deadline = System.nanoTime() + timeout * 1_000_000L;
+            while (count == 0) {
+                if (readerClosed) {
+                    throw new SocketException("Socket closed");
+                }
+                if (writerClosed) {
+                    return -1;
+                }
+
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                await(wait);
+            }
+
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (writerClosed || readerClosed) {
+                    throw new SocketException("Socket closed");
+                }
+                if (count == buffer.length) {
+                    await(0);
+                    continue;
+                }
+
+                int n = Math.min(len, buffer.length - count);
+                int tail = (head + count) % buffer.length;
+                int first = Math.min(n, buffer.length - tail);
+                System.arraycopy(b, off, buffer, tail, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private void await(long timeout) throws InterruptedIOException {
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private synchronized void closeReader() {
+            readerClosed = true;
+            notifyAll();
+        }
+
+        private synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+    }
+
+    private static class PipeConnection implements Connection {
+        private final Pipe in;
+        private final Pipe out;
+        private final String address;
+        private volatile int readTimeout = 0;
+
+        private PipeConnection(Pipe in, Pipe out, String address) {
+            this.in = in;
+            this.out = out;
+            this.address = address;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int count = read(b, 0, 1);
+                    return count == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len, readTimeout);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            readTimeout = timeout;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public String getDescription() {
+            return address;
+        }
+
+        @Override
+        public void close() {
+            in.closeReader();
+            out.closeWriter();
+        }
+    }
+
+    private static class MemoryListener implements Listener {
+        private final String address;
+        private final BlockingQueue<PipeConnection> pending = new LinkedBlockingQueue<>();
+
+        private MemoryListener(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public Connection accept(int timeout) throws IOException {
+            try {
+                PipeConnection connection = timeout > 0
+                        ? pending.poll(timeout, TimeUnit.MILLISECONDS)
+                        : pending.take();
+                if (connection == null) {
+                    throw new SocketTimeoutException("Accept timed out");
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public String getDescription() {
+            return address;
+        }
+
+        @Override
+        public void close() {
+            listeners.remove(address, this);
+            // refuse connections that were made but never accepted
+            PipeConnection connection;
+            while ((connection = pending.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
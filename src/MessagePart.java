@@ -0,0 +1,65 @@
+import java.io.Serializable;
+
+/**
+ * A part of a chat message too long to be sent in one frame. Each part is ciphered on its own, so remote host
+ * can decipher and display it as soon as it arrives rather than once the whole message is in, and never
+ * holds more than a part of the message in its buffers. The parts of a message are sent in order, on the
+ * same channel; all but the last are sealed with an authenticated cipher rather than signed (see SealedPart),
+ * and the last is signed along with a digest of the whole message, which remote host checks against the
+ * parts it has displayed. The message is acknowledged once its last part has been displayed.
+ */
+public class MessagePart implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final long id;
+    private final int index;
+    private final String text;
+    private final byte[] digest;
+
+    /**
+     * @param id the id of the message
+     * @param index the position of the part in the message
+     * @param text the text of the part
+     * @param digest the SHA-256 digest of the text of the whole message (UTF-8) if this is the last part,
+     *               or else null
+     */
+    public MessagePart(long id, int index, String text, byte[] digest) {
+        this.id = id;
+        this.index = index;
+        this.text = text;
+        this.digest = digest;
+    }
+
+    /**
+     * @return the id under which the whole message is kept in the sender's Outbox
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the position of the part in the message, starting at 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if this is the last part of the message
+     */
+    public boolean isLast() {
+        return digest != null;
+    }
+
+    /**
+     * @return the SHA-256 digest of the whole message if this is the last part, or else null
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+}
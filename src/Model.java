@@ -1,20 +1,70 @@
 import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonBar;
 import javafx.scene.control.ButtonType;
 
-import java.net.Socket;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Manages the data and background threads of the application. Receives input from the controller
  * (upon user interaction) as well as the background threads (e.g. in response to network events)
  */
 public class Model {
+    private static final Log log = Log.forClass(Model.class);
     private static final int DEFAULT_PORT = 27119;
+    // the endpoints to listen on, separated by commas: "host:port", ":port" for all local addresses, "[::1]:port"
+    // for an IPv6 address, or a Unix domain socket or in-memory address (see Transport)
+    private static final String LISTEN = System.getProperty("cryptochat.listen", ":" + DEFAULT_PORT);
+    // a Unix domain socket or in-memory address (see Transport) to listen on as well, e.g. "unix:/tmp/cryptochat"
+    private static final String LOCAL_ADDRESS = System.getProperty("cryptochat.local.address");
+    // the number of threads accepting connections on each TCP endpoint, and how many may wait to be accepted
+    private static final int ACCEPTORS = Integer.getInteger("cryptochat.acceptors", 1);
+    private static final int BACKLOG = Integer.getInteger("cryptochat.backlog", 50);
+    // the most incoming connections handled at once by each server, from reading the announcement to the user's
+    // response; beyond that, connections are closed as soon as they are accepted
+    private static final int CONNECTION_HANDLERS = Integer.getInteger("cryptochat.connection.handlers", 16);
+    // a heartbeat is sent after this many milliseconds without other traffic
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("cryptochat.heartbeat.interval", 5000);
+    // a session ends when this many heartbeat intervals pass without anything being received
+    private static final int HEARTBEAT_MISS_THRESHOLD = Integer.getInteger("cryptochat.heartbeat.misses", 3);
+    // a session's secret keys are replaced after this many messages, bytes or milliseconds, whichever comes first
+    private static final long REKEY_MESSAGES = Long.getLong("cryptochat.rekey.messages", 10_000);
+    private static final long REKEY_BYTES = Long.getLong("cryptochat.rekey.bytes", 64L * 1024 * 1024);
+    private static final long REKEY_INTERVAL = Long.getLong("cryptochat.rekey.interval", 60L * 60 * 1000);
+    // the upper bound of the delay before the first and before any reconnection attempt, in ms
+    private static final long RECONNECT_BASE_DELAY = Long.getLong("cryptochat.reconnect.base", 250);
+    private static final long RECONNECT_MAX_DELAY = Long.getLong("cryptochat.reconnect.max", 30_000);
+    // where outboxes and other persistent state are kept
+    private static final Path DATA_DIRECTORY = Path.of(System.getProperty("cryptochat.dir",
+            System.getProperty("user.home") + "/.cryptochat"));
     private final Controller controller;
-    private Server server;
-    private OutgoingConnection outgoingConnection;
-    private ChatSession activeChatSession;
+    private final List<Server> servers = new CopyOnWriteArrayList<>();
+    // the state of connection along with the outgoing connection, chat session etc. running in it; these are
+    // started and stopped by the server, session and FX threads alike, so the state is only ever replaced by CAS
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.INACTIVE);
+    // whether to reconnect when a session initiated by the user is lost
+    private volatile boolean autoReconnect = false;
+    // round-trip times of all messages acknowledged since startup
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    // one outbox per peer, by the fingerprint of its identity, opened when the first session with that peer starts
+    private final Map<String, Outbox> outboxes = new HashMap<>();
+    // the ids of the messages delivered from each peer since startup, by the fingerprint of its identity
+    private final Map<String, ReplayWindow> deliveredMessages = new HashMap<>();
+    // the user's identity and the peers whose identities the user trusts, loaded at startup
+    private Identity identity;
+    private KnownPeers knownPeers;
 
     public Model(Controller controller) {
         this.controller = controller;
@@ -27,14 +77,65 @@ public class Model {
      */
 
     public void start() {
-        startServer();
+        for (String endpoint : LISTEN.split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            if (!Transport.isTcp(endpoint)) {
+                startServer(endpoint, 0);
+                continue;
+            }
+
+            // "host", "port", "host:port" or ":port", with IPv6 addresses in brackets
+            int colon = endpoint.lastIndexOf(':');
+            String host = endpoint;
+            String port = String.valueOf(DEFAULT_PORT);
+            if (colon >= 0 && endpoint.indexOf(']', colon) < 0) {
+                host = endpoint.substring(0, colon);
+                port = endpoint.substring(colon + 1);
+            } else if (endpoint.chars().allMatch(Character::isDigit)) {
+                host = "";
+                port = endpoint;
+            }
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+
+            try {
+                startServer(host, Integer.parseInt(port));
+            } catch (NumberFormatException e) {
+                log.error("Not listening on {}, the port is not a number", endpoint);
+            }
+        }
+
+        if (LOCAL_ADDRESS != null) {
+            startServer(LOCAL_ADDRESS, 0);
+        }
+
+        // generating an identity and measuring the cipher suites take a while the first time, so not on the
+        // FX thread or a session's
+        Thread thread = new Thread(() -> {
+            try {
+                getIdentity();
+                getKnownPeers();
+            } catch (RuntimeException e) {
+                log.error("Could not load the identity or the known peers from {}", DATA_DIRECTORY, e);
+            }
+            CipherSuite.calibrate(DATA_DIRECTORY.resolve("cipher_suites"));
+        });
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Starts the server on a dedicated background thread.
+     * Starts a server on a dedicated background thread.
+     * @param address the address to listen on, empty for all local TCP addresses
+     * @param port the TCP port to listen on
      */
-    private void startServer() {
-        server = new Server(this, DEFAULT_PORT);
+    private void startServer(String address, int port) {
+        Server server = new Server(this, address, port, ACCEPTORS, BACKLOG, CONNECTION_HANDLERS);
+        servers.add(server);
 
         Thread thread = new Thread(server);
         thread.start();
@@ -46,22 +147,23 @@ public class Model {
      */
 
     /**
-     * Called when server has been started successfully.
+     * Called when a server has been started successfully.
+     * @param address a description of the address listened on
      */
-    public void serverStarted() {
-        displayMessage("Server started. Listening on port " + DEFAULT_PORT);
+    public void serverStarted(String address) {
+        displayStatus("Server started. Listening on {}", address);
     }
 
     /**
      * Called when there is a server error. Restarts server after 5 seconds.
      */
-    public void serverError() {
-        displayMessage("Server error. Restarting server in 5 seconds...");
+    public void serverError(Server server) {
+        displayStatus("Server error. Restarting server in 5 seconds...");
 
         try {
             Thread.sleep(5000);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            log.warn("Interrupted while waiting to restart the server", e);
         }
 
         // don't restart the server if the app is shutting down
@@ -69,29 +171,70 @@ public class Model {
             return;
         }
 
-        startServer();
+        servers.remove(server);
+        startServer(server.getAddress(), server.getPort());
+    }
+
+    /**
+     * Called when there is an incoming connection whose initiator has announced its identity. Accepts the
+     * connection straight away if the user has chosen to always accept that identity, else prompts the user.
+     * Waits for the user's response.
+     * @param connection the connection opened for the incoming connection
+     * @param identity the identity remote host announced, which the handshake will verify
+     * @return true if the connection is to be accepted
+     */
+    public boolean confirmIncomingConnection(Transport.Connection connection, PublicKey identity) {
+        String fingerprint;
+        try {
+            fingerprint = Identity.fingerprint(identity);
+        } catch (GeneralSecurityException e) {
+            log.warn("Could not take the fingerprint of the identity of {}", connection.getRemoteAddress(), e);
+            return false;
+        }
+
+        if (getKnownPeers().contains(fingerprint)) {
+            log.info("Accepting connection from {}, a known peer {}", connection.getRemoteAddress(), fingerprint);
+            return true;
+        }
+
+        try {
+            return promptUserForConfirmation(connection, fingerprint).get();
+        } catch (InterruptedException | ExecutionException e) {
+            log.warn("Could not get the user's confirmation for {}", connection.getRemoteAddress(), e);
+            return false;
+        }
     }
 
     /**
-     * Called when there is an incoming connection. Prompts the user to accept or reject the connection.
-     * @param socket the socket opened for the incoming connection
+     * Called when there is an incoming connection from an unknown peer. Prompts the user to accept or reject
+     * the connection, or to always accept the peer.
+     * @param connection the connection opened for the incoming connection
+     * @param fingerprint the fingerprint of the identity remote host announced
      * @return a Task object whose return value can be retrieved
      */
-    public Task<Boolean> promptUserForConfirmation(Socket socket) {
+    public Task<Boolean> promptUserForConfirmation(Transport.Connection connection, String fingerprint) {
 
         // first create the Task (it will have a return value when successfully executed)
-        String inetAddress =
-                socket.getInetAddress().toString()
-                        + " on port " + socket.getPort()
-                        + " (local port is "
-                        + socket.getLocalPort() + ")";
+        String inetAddress = connection.getDescription();
         var confirm = new Task<Boolean>() {
             @Override
             protected Boolean call() {
+                var accept = new ButtonType("Accept", ButtonBar.ButtonData.YES);
+                var alwaysAccept = new ButtonType("Always accept", ButtonBar.ButtonData.OTHER);
+                var decline = new ButtonType("Decline", ButtonBar.ButtonData.NO);
                 var result = new Alert(Alert.AlertType.CONFIRMATION,
-                        String.format("Accept connection from %s?", inetAddress))
+                        String.format("Accept connection from %s?%nIdentity: %s", inetAddress, fingerprint),
+                        accept, alwaysAccept, decline)
                         .showAndWait();
-                return (result.isPresent() && result.get() == ButtonType.OK);   // true if user accepts
+                if (result.isPresent() && result.get() == alwaysAccept) {
+                    try {
+                        getKnownPeers().add(fingerprint, connection.getRemoteAddress());
+                    } catch (IOException e) {
+                        log.warn("Could not save {} as a known peer", fingerprint, e);
+                    }
+                    return true;
+                }
+                return (result.isPresent() && result.get() == accept);   // true if user accepts
             }
         };
 
@@ -113,67 +256,221 @@ public class Model {
      * @param address the address to connect to
      */
     public void connectTo(String address) {
-        if (outgoingConnection != null || activeChatSession != null) {
-            System.err.println("Session already ongoing. Start button should be inactivated.");
-            controller.sessionEnded();
+        OutgoingConnection outgoingConnection = new OutgoingConnection(this, address, DEFAULT_PORT);
+        SessionState previous = transition(current -> current.getPhase() == ConnectionState.INACTIVE
+                ? SessionState.outgoing(address, outgoingConnection) : null);
+        if (previous == null) {
+            log.warn("Session already ongoing. Start button should be inactivated.");
+            controller.connectionStateChanged();
+            return;
         }
 
-        outgoingConnection = new OutgoingConnection(this, address, DEFAULT_PORT);
         Thread thread = new Thread(outgoingConnection);
         thread.start();
     }
 
+    /**
+     * Called when the user toggles automatic reconnection.
+     * @param autoReconnect whether to reconnect when a session initiated by the user is lost
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        if (autoReconnect) {
+            return;
+        }
+
+        // an attempt that is already under way is left to finish, but is not followed by another
+        SessionState previous = transition(current -> current.getReconnectManager() == null ? null
+                : current.isWaitingToReconnect() ? SessionState.INACTIVE : current.withoutReconnectManager());
+        if (previous != null && previous.isWaitingToReconnect()) {
+            displayStatus("You have stopped reconnecting.");
+        }
+    }
+
     /**
      * Called when the user wants to send a chat message.
      */
     public void sendMessage(String message) {
-        activeChatSession.writeToRemoteHost(message);
+        SessionState current = state.get();
+        if (current.getPhase() == ConnectionState.ACTIVE_SESSION) {
+            current.getChatSession().writeToRemoteHost(message);
+        }
     }
 
     /**
      * Called when the user wants to cancel an outgoing connection.
      */
     public void cancelOutgoingConnection() {
-        if (outgoingConnection != null) {
-            outgoingConnection.cancel();
+        SessionState previous = transition(current -> current.getPhase() != ConnectionState.CONNECTING ? null
+                : current.isWaitingToReconnect() ? SessionState.INACTIVE : current.cancelling());
+        if (previous == null) {
+            return;
+        }
+
+        // waiting for the next reconnection attempt, so there is nothing else to cancel
+        if (previous.isWaitingToReconnect()) {
+            displayStatus("You have stopped reconnecting.");
+            return;
+        }
+
+        if (previous.getOutgoingConnection() != null) {
+            previous.getOutgoingConnection().cancel();
         }
         // if a connection to the remote host has been established but no accept/decline command has been received
-        stopActiveSession();
+        if (previous.getChatSession() != null) {
+            previous.getChatSession().cancel();
+        }
     }
 
     /**
      * Called when the user wants to end an active chat session.
      */
     public void stopActiveSession() {
-        if (activeChatSession != null) {
-            activeChatSession.cancel();
+        SessionState previous = transition(current ->
+                current.getPhase() == ConnectionState.ACTIVE_SESSION ? current.ending() : null);
+        if (previous != null) {
+            previous.getChatSession().cancel();
         }
     }
 
 
+    /*
+    // methods called by Server
+     */
+
+    /**
+     * Called when there is an incoming connection, before prompting the user.
+     * @param connection the connection opened for the incoming connection
+     * @return false if there is already an ongoing session (or connection attempt), so the connection is to be declined
+     */
+    public boolean incomingConnectionStarted(Transport.Connection connection) {
+        return transition(current -> current.getPhase() == ConnectionState.INACTIVE
+                ? SessionState.incoming(connection) : null) != null;
+    }
+
+    /**
+     * Called when the user has accepted an incoming connection.
+     * @param connection the connection opened for the incoming connection
+     * @param chatSession the session to be started on the connection
+     * @return false if the connection has been cancelled in the meantime, so the connection is to be declined
+     */
+    public boolean incomingConnectionAccepted(Transport.Connection connection, ChatSession chatSession) {
+        return transition(current -> current.getIncomingConnection() == connection
+                && current.getPhase() == ConnectionState.CONNECTING ? current.withChatSession(chatSession) : null) != null;
+    }
+
+    /**
+     * Called when the user has declined an incoming connection.
+     * @param connection the connection opened for the incoming connection
+     */
+    public void incomingConnectionEnded(Transport.Connection connection) {
+        transition(current -> current.getIncomingConnection() == connection ? SessionState.INACTIVE : null);
+    }
+
+
     /*
     // methods called by OutgoingConnection
      */
 
     /**
-     * Called when the remote host has accepted the connection. Starts a chat session on a new thread.
+     * Called when the remote host has accepted the connection. Starts a chat session on a new thread,
+     * unless the user has cancelled the connection in the meantime.
      */
-    public void outgoingConnectionEstablished(Socket socket) {
-        outgoingConnection = null;
+    public void outgoingConnectionEstablished(OutgoingConnection outgoingConnection, Transport.Connection connection) {
+        ChatSession chatSession = new ChatSession(connection, this);
+        SessionState previous = transition(current -> current.getOutgoingConnection() == outgoingConnection
+                && current.getPhase() == ConnectionState.CONNECTING ? current.withChatSession(chatSession) : null);
+        if (previous == null) {
+            closeQuietly(connection);
+            outgoingConnectionEnded(outgoingConnection, "You have cancelled the outgoing connection.");
+            return;
+        }
 
-        activeChatSession = new ChatSession(socket, this);
-        Thread thread = new Thread(activeChatSession);
+        Thread thread = new Thread(chatSession);
+        thread.start();
+    }
+
+    /**
+     * Called when the pairing token has been sent to a relay, and the relay is waiting for a remote host
+     * to connect with the same token.
+     */
+    public void waitingForRelayPartner(String token, String relay) {
+        displayStatus("Connected to relay {}. Waiting for a contact using the token \"{}\"...", relay, token);
+    }
+
+    /**
+     * Called when a relay has paired our outgoing connection with a remote host that was waiting there
+     * first. Remote host acts as the initiator, so the user is prompted as for an incoming connection.
+     * Called on the OutgoingConnection thread, which waits for the user's response.
+     * @param connection the connection to the relay
+     */
+    public void relayedConnectionPaired(OutgoingConnection outgoingConnection, Transport.Connection connection) {
+        PublicKey identity;
+        try {
+            identity = Identity.readAnnouncement(connection);
+        } catch (IOException e) {
+            transition(current -> current.getOutgoingConnection() == outgoingConnection ? SessionState.INACTIVE : null);
+            displayStatus("Remote host at {} did not announce its identity.", connection.getDescription());
+            closeQuietly(connection);
+            return;
+        }
+        boolean accepted = confirmIncomingConnection(connection, identity);
+
+        ChatSession chatSession = new ChatSession(connection, this, Command.ACCEPTED, identity);
+        if (accepted) {
+            accepted = transition(current -> current.getOutgoingConnection() == outgoingConnection
+                    && current.getPhase() == ConnectionState.CONNECTING ? current.withChatSession(chatSession) : null) != null;
+        }
+        if (!accepted) {
+            transition(current -> current.getOutgoingConnection() == outgoingConnection ? SessionState.INACTIVE : null);
+        }
+
+        Thread thread = new Thread(accepted ? chatSession : new ChatSession(connection, this, Command.DECLINED, identity));
         thread.start();
     }
 
     /**
      * Called when a connection could not be established, or has been cancelled by the user.
-     * @param message the status message to display to the user
+     * @param message the status message to display to the user, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
      */
-    public void outgoingConnectionEnded(String message) {
-        outgoingConnection = null;
-        displayMessage(message);
-        controller.sessionEnded();
+    public void outgoingConnectionEnded(OutgoingConnection outgoingConnection, String message, Object... args) {
+        SessionState previous = transition(current -> current.getOutgoingConnection() != outgoingConnection ? null
+                : current.getReconnectManager() != null ? current.withOutgoingConnection(null) : SessionState.INACTIVE);
+        if (previous == null) {
+            return;
+        }
+
+        displayStatus(message, args);
+        if (previous.getReconnectManager() != null) {
+            scheduleReconnect(previous.getReconnectManager(), previous.getAddress());
+        }
+    }
+
+
+    /*
+    // methods called by ReconnectManager
+     */
+
+    /**
+     * Called when it is time for the next attempt to reconnect to the remote host of a lost session.
+     * @param reconnectManager the manager of the attempts
+     */
+    public void reconnect(ReconnectManager reconnectManager) {
+        SessionState waiting = state.get();
+        if (waiting.getReconnectManager() != reconnectManager || !waiting.isWaitingToReconnect()) {
+            return;
+        }
+
+        OutgoingConnection outgoingConnection = new OutgoingConnection(this, waiting.getAddress(), DEFAULT_PORT);
+        SessionState previous = transition(current ->
+                current == waiting ? current.withOutgoingConnection(outgoingConnection) : null);
+        if (previous == null) {
+            return;
+        }
+
+        Thread thread = new Thread(outgoingConnection);
+        thread.start();
     }
 
 
@@ -184,42 +481,98 @@ public class Model {
     /**
      * Called when an active chat session has been successfully initiated.
      * @param chatSession the ChatSession object
-     * @param ownPublicKey the user's (digested) public key
-     * @param othersPublicKey remote host's (digested) public key
+     * @param ownFingerprint the fingerprint of the user's identity
+     * @param othersFingerprint the fingerprint of remote host's identity, verified in the handshake
      */
-    public void sessionStarted(ChatSession chatSession, String ownPublicKey, String othersPublicKey) {
-        outgoingConnection = null;
-        activeChatSession = chatSession;
-        displayMessage("New session started.");
-        controller.sessionStarted(ownPublicKey, othersPublicKey, chatSession.getRemoteAddress());
+    public void sessionStarted(ChatSession chatSession, String ownFingerprint, String othersFingerprint) {
+        SessionState previous = transition(current -> current.getChatSession() == chatSession
+                && current.getPhase() == ConnectionState.CONNECTING ? current.active() : null);
+        if (previous == null) {
+            // cancelled during the handshake; the session ends as soon as it notices
+            chatSession.cancel();
+            return;
+        }
+
+        displayStatus(getKnownPeers().contains(othersFingerprint)
+                ? "New session started with a known peer." : "New session started.");
+        controller.sessionStarted(ownFingerprint, othersFingerprint, chatSession.getRemoteAddress());
     }
 
     /**
      * Called when an active chat session has been terminated for any reason.
-     * @param message the status message to display to the user
+     * @param chatSession the ChatSession object
+     * @param message the status message to display to the user, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    public void sessionEnded(ChatSession chatSession, String message, Object... args) {
+        transition(current -> current.getChatSession() == chatSession ? SessionState.INACTIVE : null);
+        displayStatus(message, args);
+    }
+
+    /**
+     * Called when an active chat session, or a connection attempt, has failed because of a network error
+     * (as opposed to either party ending it). If the user initiated the session and has enabled automatic
+     * reconnection, tries to reconnect to remote host; otherwise the same as sessionEnded.
+     * Only the initiating party reconnects, so that the two parties do not connect to each other at once.
+     * @param chatSession the ChatSession object
+     * @param message the status message to display to the user, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    public void sessionLost(ChatSession chatSession, String message, Object... args) {
+        boolean reconnect = autoReconnect && chatSession.isInitiator();
+        // a failed reconnection attempt continues with the same manager, so the delay keeps growing
+        ReconnectManager newManager = new ReconnectManager(this, RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY);
+
+        SessionState previous = transition(current -> current.getChatSession() != chatSession ? null
+                : !reconnect || !isReconnectable(current) ? SessionState.INACTIVE
+                : current.reconnecting(current.getReconnectManager() != null ? current.getReconnectManager() : newManager));
+
+        displayStatus(message, args);
+        if (previous != null && reconnect && isReconnectable(previous)) {
+            scheduleReconnect(previous.getReconnectManager() != null ? previous.getReconnectManager() : newManager,
+                    previous.getAddress());
+        }
+    }
+
+    /**
+     * @return true if a session lost in the given state is to be reconnected (unless the user is ending it anyway)
      */
-    public void sessionEnded(String message) {
-        outgoingConnection = null;
-        activeChatSession = null;
-        displayMessage(message);
-        controller.sessionEnded();
+    private static boolean isReconnectable(SessionState lost) {
+        return lost.getAddress() != null && (lost.getPhase() == ConnectionState.ACTIVE_SESSION
+                || lost.getPhase() == ConnectionState.CONNECTING);
     }
 
     /**
      * Called when an incoming connection has been rejected (either because there is already an ongoing
      * session, or because the user has chosen to decline).
-     * @param message the status message to display to the user
+     * @param message the status message to display to the user, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
      */
-    public void incomingConnectionDeclined(String message) {
-        displayMessage(message);
+    public void incomingConnectionDeclined(String message, Object... args) {
+        displayStatus(message, args);
     }
 
     /**
      * Called when a chat message has been read from the input stream.
-     * @param message the chat message
+     * @param message the chat message, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    public void readMessage(String message, Object... args) {
+        displayMessage(message, args);
+    }
+
+    /**
+     * Called when a part of a long chat message has been read from the input stream, which is displayed
+     * straight away rather than once the whole message is in.
+     * @param address the address of remote host, who sent the message
+     * @param text the text of the part
+     * @param first true if the part starts the message
+     * @param last true if the part ends the message
      */
-    public void readMessage(String message) {
-        displayMessage(message);
+    public void readMessagePart(String address, String text, boolean first, boolean last) {
+        if (controller != null) {
+            controller.displayMessagePart(address + ": ", text, first, last);
+        }
     }
 
 
@@ -232,7 +585,7 @@ public class Model {
      * @param message the message that was written
      */
     public void wroteMessage(String message) {
-        displayMessage("You: " + message);
+        displayMessage("You: {}", message);
     }
 
     /**
@@ -240,7 +593,30 @@ public class Model {
      * @param message the message that was being written
      */
     public void errorWritingMessage(String message) {
-        displayMessage("There was an error writing your message: " + message);
+        displayMessage("There was an error writing your message, it will be resent in your next session with this contact: {}", message);
+    }
+
+    /**
+     * Called when remote host has acknowledged a message, i.e. it has been deciphered and displayed.
+     * @param message the message
+     * @param roundTripNanos the time from sending the message to receiving the acknowledgement
+     */
+    public void messageDelivered(String message, long roundTripNanos) {
+        deliveryLatency.record(roundTripNanos);
+        controller.messageDelivered(message, roundTripNanos / 1_000_000,
+                deliveryLatency.getPercentile(50) / 1000,
+                deliveryLatency.getPercentile(99) / 1000,
+                deliveryLatency.getCount());
+    }
+
+    /**
+     * Called at the start of a session when there are messages left over from an earlier session with
+     * the same remote host that were never acknowledged.
+     * @param count the number of messages about to be resent
+     * @param address remote host's address
+     */
+    public void resendingMessages(int count, String address) {
+        displayStatus("Resending {} undelivered message(s) to {}:", count, address);
     }
 
 
@@ -250,24 +626,185 @@ public class Model {
      */
 
     /**
-     * Convenience method for writing messages to the chat area.
-     * @param message the message to be written
+     * Replaces the current state with the one computed from it. The computation returns null if the event does
+     * not apply to the current state (e.g. because it comes from a connection attempt that has since been
+     * cancelled). If another thread replaces the state in the meantime, the computation is repeated on the new
+     * state, so it must have no side effects; those belong after the transition, based on the state it replaced.
+     * Never blocks. Tells the controller when the phase changes, and stops a reconnect manager that is dropped.
+     * @param next computes the next state from the current one
+     * @return the state that was replaced, or null if the event did not apply
+     * @throws IllegalStateException if the next state's phase may not follow the current one's
      */
-    private void displayMessage(String message) {
-        controller.displayMessage(message);
+    private SessionState transition(UnaryOperator<SessionState> next) {
+        while (true) {
+            SessionState current = state.get();
+            SessionState updated = next.apply(current);
+            if (updated == null) {
+                return null;
+            }
+            if (!current.getPhase().canBecome(updated.getPhase())) {
+                throw new IllegalStateException("Illegal transition from " + current + " to " + updated);
+            }
+            if (!state.compareAndSet(current, updated)) {
+                continue;
+            }
+
+            ReconnectManager dropped = current.getReconnectManager();
+            if (dropped != null && dropped != updated.getReconnectManager()) {
+                dropped.stop();
+            }
+            if (current.getPhase() != updated.getPhase()) {
+                var event = new ChatEvents.StateChanged();
+                if (event.shouldCommit()) {
+                    event.from = current.getPhase().toString();
+                    event.to = updated.getPhase().toString();
+                    event.commit();
+                }
+                controller.connectionStateChanged();
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Schedules the next attempt of the reconnect manager, and tells the user.
+     */
+    private void scheduleReconnect(ReconnectManager manager, String address) {
+        long delay = manager.scheduleNextAttempt();
+        if (delay < 0) {
+            // stopped in the meantime
+            return;
+        }
+
+        displayStatus("Reconnecting to {} in {} ms (attempt {}). Press Cancel to stop.",
+                address, delay, manager.getAttempts());
+    }
+
+    private void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Convenience method for writing status messages to the chat area, which are logged as well.
+     * @param message the message to be written, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    private void displayStatus(String message, Object... args) {
+        log.info(message, args);
+        displayMessage(message, args);
+    }
+
+    /**
+     * Convenience method for writing messages to the chat area. The message is only put together on the
+     * JavaFX thread, and not at all if there is no controller to display it.
+     * @param message the message to be written, with a "{}" for each argument (see Log)
+     * @param args the arguments of the message
+     */
+    private void displayMessage(String message, Object... args) {
+        if (controller != null) {
+            controller.displayMessage(message, args);
+        }
     }
 
     public boolean hasOngoingChatSession() {
-        return activeChatSession != null;
+        return state.get().getPhase() != ConnectionState.INACTIVE;
+    }
+
+    public ConnectionState getConnectionState() {
+        return state.get().getPhase();
+    }
+
+    public long getHeartbeatInterval() {
+        return HEARTBEAT_INTERVAL;
+    }
+
+    public int getHeartbeatMissThreshold() {
+        return HEARTBEAT_MISS_THRESHOLD;
+    }
+
+    public long getRekeyMessages() {
+        return REKEY_MESSAGES;
+    }
+
+    public long getRekeyBytes() {
+        return REKEY_BYTES;
+    }
+
+    public long getRekeyInterval() {
+        return REKEY_INTERVAL;
+    }
+
+    /**
+     * Called by ChatSession when a session starts, once remote host has proven its identity.
+     * @param fingerprint the fingerprint of remote host's identity
+     * @return the outbox holding the messages to remote host that have not been acknowledged
+     */
+    public synchronized Outbox getOutbox(String fingerprint) {
+        return outboxes.computeIfAbsent(fingerprint, key -> {
+            try {
+                return new Outbox(DATA_DIRECTORY.resolve("outbox"), key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Called by ChatSession when a session starts. A message that remote host resends because the
+     * acknowledgement of an earlier session was lost is told by its id, so that it is not displayed twice.
+     * @param fingerprint the fingerprint of remote host's identity
+     * @return the ids of the messages from remote host delivered so far
+     */
+    public synchronized ReplayWindow getDeliveredMessages(String fingerprint) {
+        return deliveredMessages.computeIfAbsent(fingerprint, key -> new ReplayWindow());
+    }
+
+    /**
+     * Called by ChatSession when a session starts, and at startup.
+     * @return the user's identity, generated the first time the application runs
+     */
+    public synchronized Identity getIdentity() {
+        if (identity == null) {
+            try {
+                identity = Identity.load(DATA_DIRECTORY.resolve("identity"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not load the identity", e);
+            }
+        }
+        return identity;
+    }
+
+    /**
+     * Called when there is an incoming connection, and at startup.
+     * @return the peers whose invites the user has chosen to always accept
+     */
+    public synchronized KnownPeers getKnownPeers() {
+        if (knownPeers == null) {
+            try {
+                knownPeers = new KnownPeers(DATA_DIRECTORY.resolve("known_peers"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return knownPeers;
     }
 
     /**
      * Called by the controller at shutdown.
      */
     public void shutdown() {
-        if (server != null) {
-            server.deactivate();
-        }
+        servers.forEach(Server::deactivate);
         cancelOutgoingConnection();
+        stopActiveSession();
+
+        synchronized (this) {
+            outboxes.values().forEach(Outbox::close);
+        }
     }
 }
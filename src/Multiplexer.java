@@ -0,0 +1,470 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries several logical channels over the single object stream of a chat session, so that a large frame
+ * cannot hold up the ones queued behind it. Frames are cut into chunks of at most CHUNK_SIZE bytes, and a
+ * single writer thread interleaves the chunks of the frames on different channels: a frame on the control
+ * channel goes out before anything else, and the data channels take turns. Each data channel has its own
+ * window of bytes the sender may write before the receiver grants it more, so that a bulk transfer cannot
+ * fill the socket's buffers and delay the control channel behind it.
+ * Frames on the same channel are written and read in order; frames on different channels are not.
+ * A frame is only ciphered when its first chunk is about to be written, so that it is ciphered with the
+ * keys that remote host will have in effect when it reads that chunk.
+ */
+public class Multiplexer {
+
+    /**
+     * Produces the payload of a frame. Called on the writer thread, right before the first chunk is written.
+     */
+    public interface FrameSource {
+        SequencedFrame get() throws Exception;
+    }
+
+    /**
+     * Writes a chunk to the object stream.
+     */
+    public interface ChunkWriter {
+        void write(Chunk chunk) throws IOException;
+    }
+
+    // session control (acknowledgements, heartbeats, keys and the end of the session), never flow controlled
+    public static final int CONTROL = 0;
+    // short chat messages
+    public static final int CHAT = 1;
+    // messages too long to share a channel with the short ones
+    public static final int BULK = 2;
+    private static final int CHANNELS = 3;
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    // the number of bytes that may be in transit on each data channel
+    private static final int WINDOW = 256 * 1024;
+    // credit is granted back in batches of at least this many bytes
+    private static final int CREDIT_BATCH = WINDOW / 4;
+    // larger frames are a protocol breach, so that remote host cannot make us buffer without bound; no frame
+    // needs more than about a chunk, as long messages are sent in parts (see ChatSession.MESSAGE_PART_LENGTH)
+    private static final int MAX_FRAME_SIZE = 2 * CHUNK_SIZE;
+    // how long close waits for the end of the session to be written
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private final ChunkWriter writer;
+    private Thread writerThread;
+
+    /* // writing, all guarded by this */
+
+    private final List<Deque<Outgoing>> queues = new ArrayList<>();
+    // the frame being written on each channel, if it has been started
+    private final Outgoing[] current = new Outgoing[CHANNELS];
+    private final int[] credit = new int[CHANNELS];
+    // the data channel that was last written on, so that the other one goes next
+    private int lastDataChannel = BULK;
+    private boolean closing = false;
+    private IOException failure;
+
+    /* // reading, only accessed on the reading thread */
+
+    private final Frame[] incoming = new Frame[CHANNELS];
+    private final int[] creditToGrant = new int[CHANNELS];
+
+
+    /**
+     * @param writer writes chunks to the object stream, from the writer thread only
+     */
+    public Multiplexer(ChunkWriter writer) {
+        this.writer = writer;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            queues.add(new ArrayDeque<>());
+            credit[channel] = WINDOW;
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        writerThread = new Thread(this::writeChunks, "multiplexer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a frame on a channel.
+     * @param channel the channel on which the frame is to be written
+     * @param command the command announcing the frame
+     * @param source produces the payload
+     * @return completed once the last chunk of the frame has been written, or exceptionally if it never will be
+     */
+    public CompletableFuture<Void> send(int channel, Command command, FrameSource source) {
+        return send(channel, command, source, null);
+    }
+
+    /**
+     * Queues a frame on a channel.
+     * @param channel the channel on which the frame is to be written
+     * @param command the command announcing the frame
+     * @param source produces the payload
+     * @param afterWrite run on the writer thread once the frame has been written, before any other frame
+     *                   is started, or null
+     * @return completed once the last chunk of the frame has been written, or exceptionally if it never will be
+     */
+    public CompletableFuture<Void> send(int channel, Command command, FrameSource source, Runnable afterWrite) {
+        return enqueue(channel, new Outgoing(command, source, afterWrite, null));
+    }
+
+    /**
+     * Stops the writer once the chunks already started on the control channel, and the end of the session if
+     * it is to be sent, have been written. Frames that have not been written by then are failed. Waits for the
+     * writer thread for at most a second.
+     * @param decline true if remote host is to be told that the session has ended
+     */
+    public void close(boolean decline) {
+        if (decline) {
+            enqueue(CONTROL, new Outgoing(Command.DECLINED, null, null,
+                    new Chunk(CONTROL, Command.DECLINED, 0, new byte[0], true)));
+        }
+
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+
+        if (writerThread != null) {
+            try {
+                writerThread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized CompletableFuture<Void> enqueue(int channel, Outgoing outgoing) {
+        if (failure != null) {
+            outgoing.written.completeExceptionally(failure);
+        } else if (closing) {
+            outgoing.written.completeExceptionally(new IOException("The session has ended"));
+        } else {
+            queues.get(channel).add(outgoing);
+            notifyAll();
+        }
+        return outgoing.written;
+    }
+
+    /**
+     * Run on the writer thread: writes chunks until closed or until a write fails, and then fails whatever
+     * has not been written.
+     */
+    private void writeChunks() {
+        try {
+            int channel;
+            while ((channel = nextChannel()) >= 0) {
+                writeChunk(channel);
+            }
+            fail(new IOException("The session has ended"));
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("The session has ended"));
+        }
+    }
+
+    /**
+     * Waits until a chunk can be written.
+     * @return the channel on which the next chunk is to be written, or -1 if the writer is to stop
+     */
+    private synchronized int nextChannel() throws InterruptedException {
+        while (true) {
+            // a control frame that has been started is finished first, the others follow before any data
+            if (hasWork(CONTROL)) {
+                return CONTROL;
+            }
+            if (closing) {
+                return -1;
+            }
+
+            for (int i = 0; i < CHANNELS - 1; i++) {
+                int channel = 1 + (lastDataChannel + i) % (CHANNELS - 1);
+                if (hasWork(channel) && credit[channel] >= CHUNK_SIZE) {
+                    lastDataChannel = channel;
+                    return channel;
+                }
+            }
+
+            wait();
+        }
+    }
+
+    private boolean hasWork(int channel) {
+        if (current[channel] == null) {
+            current[channel] = queues.get(channel).poll();
+        }
+        return current[channel] != null;
+    }
+
+    /**
+     * Writes the next chunk of the frame being written on a channel, ciphering the frame first if the chunk
+     * is its first one.
+     */
+    private void writeChunk(int channel) throws IOException {
+        Outgoing outgoing;
+        synchronized (this) {
+            outgoing = current[channel];
+        }
+
+        Chunk chunk = outgoing.chunk;
+        if (chunk == null) {
+            if (outgoing.data == null && !outgoing.start()) {
+                synchronized (this) {
+                    current[channel] = null;
+                }
+                return;
+            }
+
+            int length = Math.min(CHUNK_SIZE, outgoing.data.length - outgoing.offset);
+            boolean first = outgoing.offset == 0;
+            boolean last = outgoing.offset + length == outgoing.data.length;
+            chunk = new Chunk(channel, first ? outgoing.command : null, first ? outgoing.sequence : 0,
+                    Arrays.copyOfRange(outgoing.data, outgoing.offset, outgoing.offset + length), last);
+            outgoing.offset += length;
+        }
+
+        if (channel != CONTROL) {
+            synchronized (this) {
+                credit[channel] -= chunk.getData().length;
+            }
+        }
+
+        writer.write(chunk);
+
+        if (chunk.isLast()) {
+            synchronized (this) {
+                current[channel] = null;
+            }
+            outgoing.finish(channel);
+        }
+    }
+
+    /**
+     * Fails every frame that has not been written, and any frame sent from now on.
+     */
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+            closing = true;
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                if (current[channel] != null) {
+                    current[channel].written.completeExceptionally(e);
+                    current[channel] = null;
+                }
+                queues.get(channel).forEach(outgoing -> outgoing.written.completeExceptionally(e));
+                queues.get(channel).clear();
+            }
+        }
+    }
+
+    /**
+     * Takes in a chunk read from the object stream. Called on the reading thread only. Credit granted by
+     * remote host is taken in here, and credit is granted back once enough of a channel's bytes have been read.
+     * @param chunk the chunk read
+     * @return the frame that the chunk belongs to, or null if the chunk was a credit
+     * @throws StreamCorruptedException if the chunk does not fit in with the ones read before it
+     */
+    public Frame receive(Chunk chunk) throws StreamCorruptedException {
+        int channel = chunk.getChannel();
+        if (channel < 0 || channel >= CHANNELS || chunk.getData() == null) {
+            throw new StreamCorruptedException("Bad chunk");
+        }
+
+        if (chunk.getCommand() == Command.CREDIT) {
+            if (channel == CONTROL || chunk.getCredit() <= 0) {
+                throw new StreamCorruptedException("Bad credit");
+            }
+            synchronized (this) {
+                credit[channel] += chunk.getCredit();
+                notifyAll();
+            }
+            return null;
+        }
+
+        Frame frame = incoming[channel];
+        if (chunk.isFirst() == (frame != null)) {
+            throw new StreamCorruptedException("Chunk out of sequence on channel " + channel);
+        }
+        if (frame == null) {
+            frame = new Frame(channel, chunk.getCommand(), chunk.getSequence());
+            incoming[channel] = frame;
+        }
+
+        frame.append(chunk.getData());
+        if (frame.data.size() > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Frame too large on channel " + channel);
+        }
+
+        if (channel != CONTROL) {
+            grantCredit(channel, chunk.getData().length);
+        }
+
+        if (chunk.isLast()) {
+            incoming[channel] = null;
+            frame.complete();
+        }
+        return frame;
+    }
+
+    private void grantCredit(int channel, int bytes) {
+        creditToGrant[channel] += bytes;
+        if (creditToGrant[channel] >= CREDIT_BATCH) {
+            enqueue(CONTROL, new Outgoing(Command.CREDIT, null, null, Chunk.credit(channel, creditToGrant[channel])));
+            creditToGrant[channel] = 0;
+        }
+    }
+
+    /**
+     * A frame queued for writing.
+     */
+    private static class Outgoing {
+        private final Command command;
+        private final FrameSource source;
+        private final Runnable afterWrite;
+        // set for chunks that are not part of a frame, which are written as they are
+        private final Chunk chunk;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private final ChatEvents.FrameWritten event = new ChatEvents.FrameWritten();
+        private long sequence;
+        private byte[] data;
+        private int offset = 0;
+
+        private Outgoing(Command command, FrameSource source, Runnable afterWrite, Chunk chunk) {
+            this.command = command;
+            this.source = source;
+            this.afterWrite = afterWrite;
+            this.chunk = chunk;
+        }
+
+        /**
+         * Produces and serializes the payload.
+         * @return false if it could not be produced, in which case the frame has been failed
+         */
+        private boolean start() {
+            event.begin();
+            try {
+                SequencedFrame frame = source.get();
+                var bytes = new ByteArrayOutputStream();
+                try (var out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(frame.getPayload());
+                }
+                sequence = frame.getSequence();
+                data = bytes.toByteArray();
+                return true;
+            } catch (Exception e) {
+                written.completeExceptionally(e);
+                return false;
+            }
+        }
+
+        private void finish(int channel) {
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+            written.complete(null);
+
+            if (chunk == null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.command = command.name();
+                    event.channel = channel;
+                    event.size = data.length;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * A frame being read, or read in full.
+     */
+    public static class Frame {
+        private final int channel;
+        private final Command command;
+        private final long sequence;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final ChatEvents.FrameRead event = new ChatEvents.FrameRead();
+        private boolean complete = false;
+        private Cryptographer.Decipherer decipherer;
+
+        private Frame(int channel, Command command, long sequence) {
+            this.channel = channel;
+            this.command = command;
+            this.sequence = sequence;
+            event.begin();
+        }
+
+        private void append(byte[] chunk) {
+            data.write(chunk, 0, chunk.length);
+        }
+
+        private void complete() {
+            complete = true;
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = command.name();
+                event.channel = channel;
+                event.size = data.size();
+                event.commit();
+            }
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        /**
+         * @return the sequence number given in the header of the first chunk, yet to be verified
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return true once the last chunk of the frame has been read
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Deserializes the payload; may be called on any thread once the frame is complete.
+         * @return the payload, a SignedObject, or a SealedPart for the parts of long messages
+         * @throws IOException if the payload could not be deserialized
+         * @throws ClassNotFoundException if the payload is of an unknown class
+         */
+        public Object getPayload() throws IOException, ClassNotFoundException {
+            try (var in = new ObjectInputStream(new ByteArrayInputStream(data.toByteArray()))) {
+                return in.readObject();
+            }
+        }
+
+        /**
+         * @return the decipherer for the keys that were in effect when the first chunk was read
+         */
+        public Cryptographer.Decipherer getDecipherer() {
+            return decipherer;
+        }
+
+        public void setDecipherer(Cryptographer.Decipherer decipherer) {
+            this.decipherer = decipherer;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A proxy that makes a local connection behave like a slow or unreliable network link, so that handshakes,
+ * cancellation and message latency can be measured under realistic conditions on a single host. It accepts
+ * connections on a local address of any transport, connects each to a target address and forwards the bytes
+ * both ways, held back as described by a Profile: the bytes read are cut into packets, which leave no faster
+ * than the bandwidth allows and arrive after the delay plus some jitter. Packets are never reordered (a packet
+ * held back by jitter holds back those behind it, as on a TCP connection), and the emulated link buffers no
+ * more than BUFFER_SIZE bytes per direction, beyond which the sender is slowed down by the usual flow control.
+ *
+ * Since the emulator forwards a byte stream, packets cannot actually be lost; a "lost" packet is delivered
+ * after an extra retransmission timeout instead, which is what a loss looks like to the application above TCP.
+ * A connection may also be cut, at random, after a given lifetime or on demand (see resetConnections), to
+ * exercise the reconnection and cancellation paths.
+ *
+ * Harnesses start an emulator with start or inFrontOf and connect to its address instead of the target's.
+ * Run on its own, it forwards until killed:
+ * Usage: java NetworkEmulator listen-address listen-port target-address target-port [profile]
+ * e.g.   java NetworkEmulator 127.0.0.1 27120 127.0.0.1 27119 delay=150,jitter=30,bandwidth=64k,loss=0.01
+ */
+public class NetworkEmulator implements Runnable, Closeable {
+
+    private static final Log log = Log.forClass(NetworkEmulator.class);
+
+    // the most bytes queued on the emulated link in each direction, i.e. the buffer of its bottleneck
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * How an emulated link behaves, in both directions. Written as a comma-separated list of settings, e.g.
+     * "delay=100,jitter=20,bandwidth=1m,packet=1460,loss=0.01,rto=200,reset=0.0001,lifetime=30000":
+     * delay      the one-way delay, in ms
+     * jitter     the most that is added to the delay of a packet at random, in ms
+     * bandwidth  bytes per second (with an optional k or m suffix), 0 meaning unlimited
+     * packet     the largest packet, in bytes
+     * loss       the probability that a packet is lost and has to be retransmitted
+     * rto        the retransmission timeout added to the delay of a lost packet, in ms
+     * reset      the probability that the connection is cut at a packet
+     * lifetime   the age in ms after which a connection is cut at its next packet, 0 meaning never
+     */
+    public static class Profile {
+
+        public static final Profile NONE = new Profile(0, 0, 0, 1460, 0, 200, 0, 0);
+
+        private final long delay;
+        private final long jitter;
+        private final long bandwidth;
+        private final int packetSize;
+        private final double loss;
+        private final long retransmissionTimeout;
+        private final double resetProbability;
+        private final long lifetime;
+
+        public Profile(long delay, long jitter, long bandwidth, int packetSize, double loss,
+                       long retransmissionTimeout, double resetProbability, long lifetime) {
+            if (delay < 0 || jitter < 0 || bandwidth < 0 || packetSize <= 0 || loss < 0 || loss > 1
+                    || retransmissionTimeout < 0 || resetProbability < 0 || resetProbability > 1 || lifetime < 0) {
+                throw new IllegalArgumentException("Invalid network profile");
+            }
+            this.delay = delay;
+            this.jitter = jitter;
+            this.bandwidth = bandwidth;
+            this.packetSize = packetSize;
+            this.loss = loss;
+            this.retransmissionTimeout = retransmissionTimeout;
+            this.resetProbability = resetProbability;
+            this.lifetime = lifetime;
+        }
+
+        /**
+         * @param settings a comma-separated list of settings, as described above; those left out are as in NONE
+         * @return the profile
+         * @throws IllegalArgumentException if a setting is unknown or its value invalid
+         */
+        public static Profile parse(String settings) {
+            long delay = NONE.delay;
+            long jitter = NONE.jitter;
+            long bandwidth = NONE.bandwidth;
+            int packetSize = NONE.packetSize;
+            double loss = NONE.loss;
+            long retransmissionTimeout = NONE.retransmissionTimeout;
+            double resetProbability = NONE.resetProbability;
+            long lifetime = NONE.lifetime;
+
+            for (String setting : settings.split(",")) {
+                if (setting.isBlank()) {
+                    continue;
+                }
+                String[] keyValue = setting.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Invalid network setting: " + setting);
+                }
+                String value = keyValue[1].trim();
+                try {
+                    switch (keyValue[0].trim()) {
+                        case "delay" -> delay = Long.parseLong(value);
+                        case "jitter" -> jitter = Long.parseLong(value);
+                        case "bandwidth" -> bandwidth = parseBytes(value);
+                        case "packet" -> packetSize = (int) parseBytes(value);
+                        case "loss" -> loss = Double.parseDouble(value);
+                        case "rto" -> retransmissionTimeout = Long.parseLong(value);
+                        case "reset" -> resetProbability = Double.parseDouble(value);
+                        case "lifetime" -> lifetime = Long.parseLong(value);
+                        default -> throw new IllegalArgumentException("Unknown network setting: " + setting);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid network setting: " + setting, e);
+                }
+            }
+            return new Profile(delay, jitter, bandwidth, packetSize, loss, retransmissionTimeout, resetProbability, lifetime);
+        }
+
+        private static long parseBytes(String value) {
+            String lower = value.toLowerCase();
+            if (lower.endsWith("k")) {
+                return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024;
+            }
+            if (lower.endsWith("m")) {
+                return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+            }
+            return Long.parseLong(lower);
+        }
+
+        public long getDelay() {
+            return delay;
+        }
+
+        public long getJitter() {
+            return jitter;
+        }
+
+        public long getBandwidth() {
+            return bandwidth;
+        }
+
+        public int getPacketSize() {
+            return packetSize;
+        }
+
+        public double getLoss() {
+            return loss;
+        }
+
+        public long getRetransmissionTimeout() {
+            return retransmissionTimeout;
+        }
+
+        public double getResetProbability() {
+            return resetProbability;
+        }
+
+        public long getLifetime() {
+            return lifetime;
+        }
+
+        @Override
+        public String toString() {
+            return "delay=" + delay + ",jitter=" + jitter + ",bandwidth=" + bandwidth + ",packet=" + packetSize
+                    + ",loss=" + loss + ",rto=" + retransmissionTimeout + ",reset=" + resetProbability
+                    + ",lifetime=" + lifetime;
+        }
+    }
+
+    private final Transport.Listener listener;
+    private final String address;
+    private final String targetAddress;
+    private final int targetPort;
+    private final Profile profile;
+    private final Set<Link> links = ConcurrentHashMap.newKeySet();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private volatile boolean active = true;
+
+
+    private NetworkEmulator(Transport.Listener listener, String address, String targetAddress, int targetPort,
+                            Profile profile) {
+        this.listener = listener;
+        this.address = address;
+        this.targetAddress = targetAddress;
+        this.targetPort = targetPort;
+        this.profile = profile;
+    }
+
+    /**
+     * Starts an emulator forwarding connections to a target.
+     * @param address the address to listen on, of any transport
+     * @param port the port to listen on (0 for any free port), ignored by transports without ports
+     * @param targetAddress the address to forward connections to
+     * @param targetPort the port to forward connections to
+     * @param profile how the link behaves
+     * @return the emulator, accepting connections
+     */
+    public static NetworkEmulator start(String address, int port, String targetAddress, int targetPort,
+                                        Profile profile) throws IOException {
+        Transport.Listener listener = Transport.forAddress(address).listen(address, port);
+        NetworkEmulator emulator = new NetworkEmulator(listener, address, targetAddress, targetPort, profile);
+        Thread thread = new Thread(emulator, "emulator");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Emulating {} between {} and {}:{}", profile, listener.getDescription(), targetAddress, targetPort);
+        return emulator;
+    }
+
+    /**
+     * Starts an emulator in front of a target, listening on an address of the target's transport: any free
+     * port of the same host for TCP, the target's address with ".emulated" appended for the others.
+     */
+    public static NetworkEmulator inFrontOf(String targetAddress, int targetPort, Profile profile) throws IOException {
+        String address = Transport.isTcp(targetAddress) ? targetAddress : targetAddress + ".emulated";
+        return start(address, 0, targetAddress, targetPort, profile);
+    }
+
+    /**
+     * @return the address to connect to instead of the target's
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the port to connect to instead of the target's, or 0 for transports without ports
+     */
+    public int getPort() {
+        return listener.getPort();
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the number of connections accepted so far
+     */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the number of connections cut so far, by the profile or by resetConnections
+     */
+    public long getResets() {
+        return resets.get();
+    }
+
+    /**
+     * @return the number of bytes delivered so far, in both directions
+     */
+    public long getBytesForwarded() {
+        return bytesForwarded.get();
+    }
+
+    /**
+     * Cuts every connection open at the moment, dropping whatever is still on the emulated links.
+     */
+    public void resetConnections() {
+        for (Link link : links) {
+            link.cut(true);
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes those that are open.
+     */
+    @Override
+    public void close() {
+        active = false;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            log.warn("Error closing the emulator's listener", e);
+        }
+        for (Link link : links) {
+            link.cut(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (active) {
+            Transport.Connection client;
+            try {
+                client = listener.accept(0);
+            } catch (IOException e) {
+                if (active) {
+                    log.warn("Error accepting a connection to the emulator", e);
+                }
+                continue;
+            }
+
+            try {
+                Transport.Connection server = Transport.forAddress(targetAddress).connect(targetAddress, targetPort, CONNECT_TIMEOUT);
+                connections.incrementAndGet();
+                new Link(client, server).start();
+            } catch (IOException e) {
+                log.warn("Could not connect to {}:{}, dropping the emulated connection", targetAddress, targetPort, e);
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private static void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // the connection is being dropped anyway
+        }
+    }
+
+
+    /* // links */
+
+    /**
+     * An accepted connection and the one to the target it is forwarded to.
+     */
+    private class Link {
+        private final Transport.Connection client;
+        private final Transport.Connection server;
+        private final Direction[] directions = new Direction[2];
+        private final long created = System.nanoTime();
+        private boolean cut = false;
+        private int directionsEnded = 0;
+
+        private Link(Transport.Connection client, Transport.Connection server) {
+            this.client = client;
+            this.server = server;
+        }
+
+        private void start() throws IOException {
+            links.add(this);
+            try {
+                directions[0] = new Direction(this, client.getInputStream(), server, "up");
+                directions[1] = new Direction(this, server.getInputStream(), client, "down");
+            } catch (IOException e) {
+                cut(false);
+                throw e;
+            }
+            for (Direction direction : directions) {
+                direction.start();
+            }
+            if (!active) {
+                cut(false);
+            }
+        }
+
+        private boolean isExpired() {
+            return profile.getLifetime() > 0 && System.nanoTime() - created >= profile.getLifetime() * 1_000_000;
+        }
+
+        /**
+         * Closes both connections at once, dropping whatever is still on the link, and ends its threads.
+         * @param reset true if the connection is cut before either end closed it
+         */
+        private void cut(boolean reset) {
+            synchronized (this) {
+                if (cut) {
+                    return;
+                }
+                cut = true;
+            }
+            links.remove(this);
+            if (reset) {
+                resets.incrementAndGet();
+                log.debug("Cut the emulated connection from {}", client.getRemoteAddress());
+            }
+            closeQuietly(client);
+            closeQuietly(server);
+            for (Direction direction : directions) {
+                if (direction != null) {
+                    direction.reader.interrupt();
+                    direction.writer.interrupt();
+                }
+            }
+        }
+
+        private void directionEnded() {
+            synchronized (this) {
+                if (++directionsEnded < directions.length) {
+                    return;
+                }
+            }
+            links.remove(this);
+        }
+    }
+
+    /**
+     * A packet on an emulated link, and when it is due at the other end. The packet without data marks the
+     * end of the stream.
+     */
+    private static class Packet {
+        private final byte[] data;
+        private final long due;
+
+        private Packet(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    /**
+     * One direction of a link: a reader thread that cuts the incoming bytes into packets and works out when
+     * each is due, and a writer thread that delivers them when they are. The end of the incoming stream is
+     * delivered like any packet, by closing the connection at the other end once everything before it has been
+     * delivered; neither transport can half-close a connection, so that also ends the other direction.
+     */
+    private class Direction {
+        private final Link link;
+        private final InputStream in;
+        private final Transport.Connection destination;
+        private final Thread reader;
+        private final Thread writer;
+        private final BlockingQueue<Packet> queue =
+                new ArrayBlockingQueue<>(Math.max(16, BUFFER_SIZE / profile.getPacketSize()));
+        // on the reader thread only: when the emulated link has finished sending the last packet, and when that is due
+        private long sent = 0;
+        private long lastDue = 0;
+
+        private Direction(Link link, InputStream in, Transport.Connection destination, String name) {
+            this.link = link;
+            this.in = in;
+            this.destination = destination;
+            this.reader = new Thread(this::read, "emulator-" + name + "-reader");
+            this.writer = new Thread(this::write, "emulator-" + name + "-writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+        }
+
+        private void start() {
+            writer.start();
+            reader.start();
+        }
+
+        private void read() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            byte[] buffer = new byte[profile.getPacketSize()];
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (random.nextDouble() < profile.getResetProbability() || link.isExpired()) {
+                        link.cut(true);
+                        return;
+                    }
+
+                    // the packet waits for the link to finish sending those before it, then takes its own time
+                    long start = Math.max(System.nanoTime(), sent);
+                    sent = start + (profile.getBandwidth() > 0 ? read * 1_000_000_000L / profile.getBandwidth() : 0);
+                    long delay = profile.getDelay() + (profile.getJitter() > 0 ? random.nextLong(profile.getJitter() + 1) : 0);
+                    if (random.nextDouble() < profile.getLoss()) {
+                        delay += profile.getRetransmissionTimeout();
+                    }
+                    lastDue = Math.max(lastDue, sent + delay * 1_000_000);
+                    queue.put(new Packet(Arrays.copyOf(buffer, read), lastDue));
+                }
+            } catch (IOException e) {
+                // the connection has been closed, which ends the stream like an orderly close
+            } catch (InterruptedException e) {
+                // the link has been cut
+                return;
+            }
+
+            try {
+                queue.put(new Packet(null, Math.max(System.nanoTime(), lastDue)));
+            } catch (InterruptedException e) {
+                // the link has been cut
+            }
+        }
+
+        private void write() {
+            try {
+                OutputStream out = destination.getOutputStream();
+                boolean delivering = true;
+                while (true) {
+                    Packet packet = queue.take();
+                    long wait;
+                    while (delivering && (wait = packet.due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                    }
+                    if (packet.data == null) {
+                        break;
+                    }
+                    if (delivering) {
+                        try {
+                            out.write(packet.data);
+                            out.flush();
+                            bytesForwarded.addAndGet(packet.data.length);
+                        } catch (IOException e) {
+                            // the other end has gone; what remains is dropped, but taken so that the reader never blocks
+                            delivering = false;
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the link has been cut
+            }
+            closeQuietly(destination);
+            link.directionEnded();
+        }
+    }
+
+
+    /* // command line */
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java NetworkEmulator listen-address listen-port target-address target-port [profile]");
+            System.exit(2);
+        }
+        Profile profile = args.length > 4 ? Profile.parse(args[4]) : Profile.NONE;
+        NetworkEmulator emulator = start(args[0], Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), profile);
+        System.out.printf("Forwarding %s:%d to %s:%d with %s%n",
+                args[0], emulator.getPort(), args[2], Integer.parseInt(args[3]), profile);
+
+        while (true) {
+            Thread.sleep(10_000);
+            System.out.printf("%,d connections, %,d cut, %,d bytes forwarded%n",
+                    emulator.getConnections(), emulator.getResets(), emulator.getBytesForwarded());
+        }
+    }
+}
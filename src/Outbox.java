@@ -0,0 +1,303 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The outgoing messages to one peer that have not yet been acknowledged, backed by an append-only log
+ * on disk so they survive both a dropped connection and a restart of the application. Messages are numbered
+ * in the order they are sent; whatever has not been acknowledged when a session ends is resent, in order,
+ * at the start of the next session with the same peer, whatever address it is reached at. The peer is told by
+ * the fingerprint of its identity, so the messages are only ever resent to the peer they were written to.
+ * Records are appended by a background thread, which writes and syncs everything that has queued up since
+ * its previous write in one go, so a send never waits for the disk. The log holds the messages in the clear,
+ * so it is only readable by its owner, where the file system supports that.
+ */
+public class Outbox {
+
+    private static final Log log = Log.forClass(Outbox.class);
+    private static final byte RECORD_SENT = 1;
+    private static final byte RECORD_ACKNOWLEDGED = 2;
+    private static final byte RECORD_NEXT_ID = 3;
+    // the log is rewritten without the acknowledged messages when it has grown beyond this size
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+    // how long to wait before trying again when the log could not be written, in ms
+    private static final long RETRY_DELAY = 5000;
+
+    private final Path file;
+    // replaced by compaction (only accessed on the writer thread once it has started)
+    private FileChannel channel;
+    private long compactionThreshold = COMPACTION_THRESHOLD;
+    // unacknowledged messages by id
+    private final TreeMap<Long, String> pending = new TreeMap<>();
+    private final BlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private long nextId = 1;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the outbox for the given peer, replaying its log if there is one.
+     * @param directory the directory in which logs are kept
+     * @param fingerprint the fingerprint of the peer's identity (see Identity.fingerprint)
+     * @throws IOException if the log could not be read or opened for writing
+     */
+    public Outbox(Path directory, String fingerprint) throws IOException {
+        Files.createDirectories(directory);
+        // in hex rather than Base64, as file names may not tell case apart
+        file = directory.resolve(HexFormat.of().formatHex(Base64.getDecoder().decode(fingerprint)) + ".log");
+        if (!Files.exists(file)) {
+            createPrivateFile(file);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // drop a record that was only partly written when the application last stopped
+        channel.truncate(load());
+        channel.position(channel.size());
+
+        writerThread = new Thread(this::writeRecords);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Adds a message that is about to be sent.
+     * @param text the message
+     * @return the message with its id
+     */
+    public synchronized ChatMessage add(String text) {
+        long id = nextId++;
+        pending.put(id, text);
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        records.add(record(RECORD_SENT, id, bytes));
+        return new ChatMessage(id, text);
+    }
+
+    /**
+     * Removes a message that remote host has acknowledged.
+     * @param id the id of the message
+     * @return the message, or null if it had already been acknowledged
+     */
+    public synchronized String acknowledge(long id) {
+        String text = pending.remove(id);
+        if (text != null) {
+            records.add(record(RECORD_ACKNOWLEDGED, id, null));
+        }
+        return text;
+    }
+
+    /**
+     * @return the unacknowledged messages in the order they were sent
+     */
+    public synchronized List<ChatMessage> getPending() {
+        List<ChatMessage> messages = new ArrayList<>(pending.size());
+        for (Map.Entry<Long, String> entry : pending.entrySet()) {
+            messages.add(new ChatMessage(entry.getKey(), entry.getValue()));
+        }
+        return messages;
+    }
+
+    /**
+     * Writes any queued records and closes the log.
+     */
+    public void close() {
+        closed = true;
+        // wakes up the writer thread without interrupting it, since an interrupt would close the channel
+        records.add(new byte[0]);
+        try {
+            writerThread.join(1000);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads the log, rebuilding the pending messages and the next id.
+     * @return the length of the part of the log that could be read
+     */
+    private long load() throws IOException {
+        InputStream in = Channels.newInputStream(channel);
+        var dis = new DataInputStream(new BufferedInputStream(in));
+        long position = 0;
+
+        try {
+            while (true) {
+                byte type = dis.readByte();
+                long id = dis.readLong();
+                int length = 1 + Long.BYTES;
+
+                if (type == RECORD_SENT) {
+                    byte[] bytes = new byte[dis.readInt()];
+                    dis.readFully(bytes);
+                    pending.put(id, new String(bytes, StandardCharsets.UTF_8));
+                    nextId = Math.max(nextId, id + 1);
+                    length += Integer.BYTES + bytes.length;
+                } else if (type == RECORD_ACKNOWLEDGED) {
+                    pending.remove(id);
+                } else if (type == RECORD_NEXT_ID) {
+                    nextId = Math.max(nextId, id);
+                } else {
+                    break;
+                }
+                position += length;
+            }
+        } catch (EOFException e) {
+            // end of log, or a partly written record
+        }
+
+        return position;
+    }
+
+    /**
+     * Runs on the writer thread. Waits for records, then writes all that have queued up and syncs them
+     * to disk with a single call.
+     * If the log cannot be written, the messages are still pending in memory, and the log is rewritten from them
+     * every RETRY_DELAY ms until that succeeds (it may end in a partly written batch, so appending to it is not
+     * safe). Each attempt drops the records queued before it, since the rewritten log reflects them.
+     */
+    private void writeRecords() {
+        List<byte[]> batch = new ArrayList<>();
+        boolean failed = false;
+
+        while (true) {
+            try {
+                if (failed) {
+                    // the delay is waited out whatever comes in, rather than trying again for every message sent
+                    Thread.sleep(RETRY_DELAY);
+                } else {
+                    batch.add(records.take());
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            records.drainTo(batch);
+
+            try {
+                if (failed) {
+                    batch.clear();
+                    rewrite();
+                    failed = false;
+                    log.info("Wrote the outbox log {} again", file);
+                } else if (!batch.isEmpty()) {
+                    int size = batch.stream().mapToInt(record -> record.length).sum();
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    batch.forEach(buffer::put);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                    batch.clear();
+                    compact();
+                }
+
+                if (closed) {
+                    channel.close();
+                    return;
+                }
+            } catch (IOException e) {
+                if (!failed) {
+                    log.error("Could not write the outbox log {}, trying again every {} ms", file, RETRY_DELAY, e);
+                }
+                failed = true;
+                if (closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log once it has grown beyond the compaction threshold, keeping only the messages that are
+     * still pending and the next id, so that ids are never reused. Records queued meanwhile are written after
+     * the rewritten log; they are already reflected in it, and replaying them changes nothing. The new log is
+     * written next to the old one and then moved over it, so a crash leaves one of the two intact.
+     * The threshold becomes twice the size of the rewritten log, so a large backlog is not rewritten after every batch.
+     */
+    private void compact() throws IOException {
+        if (channel.size() >= compactionThreshold) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the messages that are still pending and the next id (see compact).
+     */
+    private void rewrite() throws IOException {
+        List<byte[]> live = new ArrayList<>();
+        synchronized (this) {
+            live.add(record(RECORD_NEXT_ID, nextId, null));
+            pending.forEach((id, text) -> live.add(record(RECORD_SENT, id, text.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        createPrivateFile(temporary);
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(live.stream().mapToInt(record -> record.length).sum());
+            live.forEach(buffer::put);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the log has been replaced anyway
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        compactionThreshold = Math.max(COMPACTION_THRESHOLD, 2 * channel.size());
+    }
+
+    /**
+     * Creates a file that only its owner can read, where the file system supports that (see Identity.load).
+     */
+    private static void createPrivateFile(Path path) throws IOException {
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+        }
+    }
+
+    private static byte[] record(byte type, long id, byte[] text) {
+        var bytes = new ByteArrayOutputStream(text == null ? 9 : 13 + text.length);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(id);
+            if (text != null) {
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        } catch (IOException e) {
+            // cannot happen when writing to a byte array
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -1,38 +1,77 @@
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Runnable charged with establishing an outgoing connecting to the specified host/port.
  * Runs until a connection has been established, i.e. the remote server has run
  * "serverSocket.accept()", or any kind of error has occurred, or until cancelled.
+ * The host may also be a Unix domain socket or in-memory address (see Transport).
+ * An address of the form "token@relayhost[:port]" connects through a Relay instead, and runs
+ * until the relay has paired the connection with a remote host using the same token.
  */
 public class OutgoingConnection implements Runnable {
+    private static final Log log = Log.forClass(OutgoingConnection.class);
+    // the timeout of a single connection attempt, and the delay before racing it against the next address
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final long ATTEMPT_DELAY = 250;
+
     private final Model model;
     private final String host;
     private final int port;
-    private boolean cancelled = false;
+    // the pairing token, if connecting through a relay
+    private final String relayToken;
+    private volatile boolean cancelled = false;
 
-    public OutgoingConnection(Model model, String host, int port) {
+    public OutgoingConnection(Model model, String address, int port) {
         this.model = model;
-        this.host = host;
-        this.port = port;
+
+        int at = address.indexOf('@');
+        if (at < 0) {
+            this.host = address;
+            this.port = port;
+            this.relayToken = null;
+            return;
+        }
+
+        // token@relayhost or token@relayhost:port (a bare IPv6 address has several colons and no port)
+        String relay = address.substring(at + 1);
+        int colon = relay.lastIndexOf(':');
+        boolean hasPort = Transport.isTcp(relay) && colon > 0 && colon == relay.indexOf(':') && relay.substring(colon + 1).matches("\\d{1,5}");
+        this.host = hasPort ? relay.substring(0, colon) : relay;
+        this.port = hasPort ? Integer.parseInt(relay.substring(colon + 1)) : Relay.DEFAULT_PORT;
+        this.relayToken = address.substring(0, at);
     }
 
     @Override
     public void run() {
-        Socket socket = new Socket();
-        InetSocketAddress inetSocketAddress;
+        Transport.Connection connection = null;
 
         try {
-            inetSocketAddress = new InetSocketAddress(host, port);
-
             while (!cancelled) {
                 try {
-                    socket.connect(inetSocketAddress, 5000);
-                    model.outgoingConnectionEstablished(socket);
+                    connection = connect();
+                    if (connection == null) {
+                        // cancelled
+                        break;
+                    }
+                    if (relayToken == null) {
+                        model.outgoingConnectionEstablished(this, connection);
+                    } else {
+                        pairThroughRelay(connection);
+                    }
                     break;
                 } catch (SocketTimeoutException e) {
                     // continue
@@ -40,14 +79,189 @@ public class OutgoingConnection implements Runnable {
             }
 
             if (cancelled) {
-                model.outgoingConnectionEnded("You have cancelled the outgoing connection to " + host + ".");
+                model.outgoingConnectionEnded(this, "You have cancelled the outgoing connection to {}.", host);
+                closeQuietly(connection);
             }
 
-        } catch (IOException e) {
-            model.outgoingConnectionEnded("Could not establish an outgoing connection to " + host + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            log.info("Could not connect to {}", host, e);
+            model.outgoingConnectionEnded(this, "Could not establish an outgoing connection to {}.", host);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Connects to the host, racing all its addresses if it is reached over TCP.
+     * @return the connection, or null if cancelled
+     */
+    private Transport.Connection connect() throws IOException {
+        if (!Transport.isTcp(host)) {
+            return Transport.forAddress(host).connect(host, port, CONNECT_TIMEOUT);
+        }
+
+        Socket socket = race(InetAddress.getAllByName(host));
+        return socket == null ? null : new TcpTransport.SocketConnection(socket);
+    }
+
+    /**
+     * Races connection attempts to all addresses of the host ("happy eyeballs"). Attempts are started one
+     * at a time, alternating between IPv6 and IPv4, each one either ATTEMPT_DELAY ms after the previous one
+     * or as soon as the previous one fails, whichever comes first. The first attempt to connect wins and all
+     * others are abandoned, so an address that is slow or does not respond at all costs no more than the delay.
+     * @param addresses the addresses of the host
+     * @return the connected socket, or null if cancelled
+     * @throws SocketTimeoutException if every attempt timed out
+     * @throws IOException if every attempt failed, and at least one of them for another reason than a timeout
+     */
+    private Socket race(InetAddress[] addresses) throws IOException {
+        List<InetAddress> candidates = interleaveFamilies(addresses);
+        List<Socket> attempts = new ArrayList<>();
+        // each attempt puts either its connected socket or the exception it failed with here
+        BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+        Socket winner = null;
+        IOException failure = null;
+        int failed = 0;
+
+        try {
+            long nextAttempt = System.nanoTime();
+            while (!cancelled && failed < candidates.size()) {
+                int running = attempts.size() - failed;
+                if (attempts.size() < candidates.size() && (running == 0 || System.nanoTime() >= nextAttempt)) {
+                    attempts.add(startAttempt(candidates.get(attempts.size()), outcomes));
+                    nextAttempt = System.nanoTime() + ATTEMPT_DELAY * 1_000_000;
+                }
+
+                // wake up for the next attempt, and now and then so we can check if the thread has been cancelled
+                long wait = attempts.size() < candidates.size()
+                        ? Math.max(0, (nextAttempt - System.nanoTime()) / 1_000_000) : 1000;
+                Object outcome;
+                try {
+                    outcome = outcomes.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+
+                if (outcome instanceof Socket socket) {
+                    winner = socket;
+                    return winner;
+                } else if (outcome instanceof IOException e) {
+                    failed++;
+                    // prefer reporting a failure other than a timeout, as that one is final
+                    if (failure == null || failure instanceof SocketTimeoutException) {
+                        failure = e;
+                    }
+                }
+            }
+
+            if (cancelled) {
+                return null;
+            }
+            throw failure;
+
+        } finally {
+            // abandon all other attempts, including any that are still connecting
+            for (Socket attempt : attempts) {
+                if (attempt != winner) {
+                    closeQuietly(attempt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a connection attempt to a single address on a separate thread.
+     * @return the socket being connected
+     */
+    private Socket startAttempt(InetAddress address, BlockingQueue<Object> outcomes) {
+        Socket socket = new Socket();
+
+        Thread thread = new Thread(() -> {
+            try {
+                socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+                outcomes.add(socket);
+            } catch (IOException e) {
+                outcomes.add(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        return socket;
+    }
+
+    /**
+     * Orders the addresses so that the address families alternate, starting with the family of the first
+     * address, and otherwise keeping the order given by the resolver.
+     */
+    private static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address.getClass() == addresses[0].getClass() ? first : second).add(address);
+        }
+
+        List<InetAddress> interleaved = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                interleaved.add(first.get(i));
+            }
+            if (i < second.size()) {
+                interleaved.add(second.get(i));
+            }
         }
+        return interleaved;
     }
 
+    /**
+     * Sends the pairing token to the relay and waits for it to pair us with a remote host.
+     * Depending on the role assigned by the relay, the local user then acts either as the
+     * initiator or as the responder of the chat session.
+     * @param connection the connection to the relay
+     * @throws IOException if the relay closes the connection or sends something unexpected
+     */
+    private void pairThroughRelay(Transport.Connection connection) throws IOException {
+        byte[] token = relayToken.getBytes(StandardCharsets.US_ASCII);
+        if (token.length == 0 || token.length > Relay.MAX_TOKEN_LENGTH) {
+            throw new IOException("Bad relay token");
+        }
+
+        OutputStream out = connection.getOutputStream();
+        out.write(token);
+        out.write('\n');
+        out.flush();
+
+        model.waitingForRelayPartner(relayToken, host);
+
+        // set a timeout so reads do not block indefinitely, so we can check if the thread has been cancelled
+        connection.setReadTimeout(1000);
+        InputStream in = connection.getInputStream();
+        while (!cancelled) {
+            try {
+                int role = in.read();
+                if (role == Relay.ROLE_INITIATOR) {
+                    model.outgoingConnectionEstablished(this, connection);
+                } else if (role == Relay.ROLE_RESPONDER) {
+                    model.relayedConnectionPaired(this, connection);
+                } else {
+                    throw new IOException("Unexpected response from relay");
+                }
+                return;
+            } catch (SocketTimeoutException e) {
+                // continue
+            }
+        }
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
 
     public void cancel() {
         cancelled = true;
@@ -0,0 +1,177 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A symmetric-key ratchet for one direction of a session: a chain of keys, each derived from the one before
+ * with HMAC-SHA256, from each of which the key of one message is derived. A chain key is overwritten as soon
+ * as the next one has been derived, so a key that leaks exposes neither earlier messages nor earlier keys.
+ * Both parties start the chain from the same secret, and the sender tells the receiver the index of each
+ * message in the chain, so messages may be deciphered in any order: the keys of messages that are skipped
+ * over are kept, up to MAX_SKIPPED of them, until those messages arrive. A key is only handed out once,
+ * so a message that is replayed cannot be deciphered.
+ * Fresh secret material is mixed in from time to time (see mix), so that a leaked chain key does not expose
+ * later messages either.
+ */
+public class Ratchet {
+
+    // the most keys kept for messages that have been skipped over, and so the furthest a message may skip ahead
+    public static final int MAX_SKIPPED = 4096;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] CHAIN_LABEL = "cryptochat chain".getBytes();
+    private static final byte MESSAGE_KEY = 1;
+    private static final byte CHAIN_KEY = 2;
+
+    /**
+     * The key of a message, and the index of the message in the chain.
+     */
+    public static class MessageKey {
+        private final int index;
+        private final SecretKey key;
+
+        private MessageKey(int index, SecretKey key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public SecretKey getKey() {
+            return key;
+        }
+    }
+
+    private final String keyAlgorithm;
+    private final int keyLength;
+    private final Mac mac;
+    private byte[] chainKey;
+    // the index of the message whose key is derived next; once mixed, no more keys are derived
+    private int index = 0;
+    private boolean mixed = false;
+    // the keys of messages that have been skipped over, by index, the oldest first
+    private final Map<Integer, SecretKey> skipped = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, SecretKey> eldest) {
+            return size() > MAX_SKIPPED;
+        }
+    };
+
+    /**
+     * @param secret the secret shared by both parties, from which the first chain key is derived
+     * @param keyAlgorithm the algorithm of the message keys, e.g. "Blowfish"
+     * @param keySize the size of the message keys in bits
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    public Ratchet(byte[] secret, String keyAlgorithm, int keySize) throws GeneralSecurityException {
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyLength = keySize / 8;
+        this.mac = Mac.getInstance(MAC_ALGORITHM);
+        this.chainKey = hmac(secret, CHAIN_LABEL);
+    }
+
+    /**
+     * Derives the key of the next message to send, and moves the chain on. Used by the sender.
+     * @return the key, with the index to send along with the message
+     * @throws GeneralSecurityException if the key could not be derived, or fresh material has been mixed in
+     */
+    public synchronized MessageKey next() throws GeneralSecurityException {
+        if (mixed) {
+            throw new GeneralSecurityException("The chain has been replaced");
+        }
+        int messageIndex = index;
+        return new MessageKey(messageIndex, step());
+    }
+
+    /**
+     * Hands out the key of a received message. Used by the receiver.
+     * @param messageIndex the index sent along with the message
+     * @return the key
+     * @throws FailedVerificationException if the key has already been handed out, or was dropped
+     * @throws GeneralSecurityException if the key could not be derived
+     */
+    public synchronized SecretKey keyFor(int messageIndex) throws GeneralSecurityException, FailedVerificationException {
+        SecretKey key = skipped.remove(messageIndex);
+        if (key != null) {
+            return key;
+        }
+        if (messageIndex < index || mixed || messageIndex - index > MAX_SKIPPED) {
+            throw new FailedVerificationException();
+        }
+
+        skipTo(messageIndex);
+        return step();
+    }
+
+    /**
+     * Ends this chain after a given number of messages, and starts a new one from its last chain key and
+     * fresh secret material. Keys of messages of this chain that have not been handed out yet stay available.
+     * @param length the number of messages sent on this chain
+     * @param secret the fresh secret material
+     * @return the new chain
+     * @throws GeneralSecurityException if the keys could not be derived
+     * @throws FailedVerificationException if this chain has already gone past the given length
+     */
+    public synchronized Ratchet mix(int length, byte[] secret) throws GeneralSecurityException, FailedVerificationException {
+        if (length < index || mixed || length - index > MAX_SKIPPED) {
+            throw new FailedVerificationException();
+        }
+
+        skipTo(length);
+        Ratchet next = new Ratchet(hmac(chainKey, secret), keyAlgorithm, keyLength * 8);
+        Arrays.fill(chainKey, (byte) 0);
+        mixed = true;
+        return next;
+    }
+
+    /**
+     * @return the index of the next message on the chain, i.e. the number of messages so far
+     */
+    public synchronized int getIndex() {
+        return index;
+    }
+
+    /**
+     * Keeps the keys of the messages up to the given index.
+     */
+    private void skipTo(int messageIndex) throws GeneralSecurityException {
+        while (index < messageIndex) {
+            skipped.put(index, step());
+        }
+    }
+
+    /**
+     * Derives the key of the current message, and replaces the chain key with the next one.
+     */
+    private SecretKey step() throws GeneralSecurityException {
+        // counter mode: as many blocks as the key needs, each keyed with the chain key
+        byte[] keyBytes = new byte[keyLength];
+        byte[] block = {MESSAGE_KEY, 0};
+        for (int offset = 0; offset < keyLength; offset += mac.getMacLength()) {
+            block[1]++;
+            byte[] output = hmac(chainKey, block);
+            System.arraycopy(output, 0, keyBytes, offset, Math.min(output.length, keyLength - offset));
+            Arrays.fill(output, (byte) 0);
+        }
+
+        byte[] nextChainKey = hmac(chainKey, new byte[] {CHAIN_KEY});
+        Arrays.fill(chainKey, (byte) 0);
+        chainKey = nextChainKey;
+        index++;
+
+        SecretKey key = new SecretKeySpec(keyBytes, keyAlgorithm);
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    private byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        return mac.doFinal(data);
+    }
+}
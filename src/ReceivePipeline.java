@@ -0,0 +1,142 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lets the frames of a chat session be verified and decrypted in parallel while still being delivered in
+ * the order they were received. The reading thread only splits the stream into frames and submits them;
+ * the expensive work is done on a pool of worker threads shared by all sessions, and the results are put
+ * into a reorder buffer indexed by sequence number. Whichever thread completes the next frame in line
+ * delivers it, along with any later frames that are already done.
+ * At most a fixed number of frames can be in flight at once, which bounds the memory used and slows the
+ * reading thread down when the workers cannot keep up.
+ */
+public class ReceivePipeline {
+
+    /**
+     * The work to be done for a frame on a worker thread.
+     */
+    public interface Stage {
+        /**
+         * @return the delivery of the result, to be run once all earlier frames have been delivered
+         * @throws Exception if the frame could not be processed, which fails the whole pipeline
+         */
+        Runnable process() throws Exception;
+    }
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "receive-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final Runnable SKIPPED = () -> {};
+
+    private final Runnable[] reorderBuffer;
+    private final Semaphore inFlight;
+    private long nextSubmitted = 0;
+    private long nextDelivered = 0;
+    private boolean delivering = false;
+    private volatile Exception failure;
+
+    /**
+     * @param capacity the maximum number of frames in flight
+     */
+    public ReceivePipeline(int capacity) {
+        reorderBuffer = new Runnable[capacity];
+        inFlight = new Semaphore(capacity);
+    }
+
+    /**
+     * Submits a frame. Called on the reading thread only; blocks while the pipeline is full.
+     * @param stage the work to be done for the frame
+     * @throws InterruptedException if interrupted while waiting for room in the pipeline
+     */
+    public void submit(Stage stage) throws InterruptedException {
+        inFlight.acquire();
+        long sequence = nextSubmitted++;
+
+        workers.execute(() -> {
+            Runnable delivery;
+            try {
+                delivery = stage.process();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                delivery = SKIPPED;
+            }
+            complete(sequence, delivery);
+        });
+    }
+
+    /**
+     * Waits until every submitted frame has been delivered.
+     * @throws Exception the failure of any frame, if one has failed
+     */
+    public void awaitDelivered() throws Exception {
+        synchronized (this) {
+            while (nextDelivered < nextSubmitted) {
+                wait();
+            }
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Fails the pipeline from a delivery, when a frame turns out not to fit with the ones delivered before it.
+     * Nothing is delivered after this, and the failure is thrown by the next call to throwIfFailed.
+     * @param e the failure
+     */
+    public void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * @throws Exception the failure of the first frame that could not be processed, if any
+     */
+    public void throwIfFailed() throws Exception {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Puts a processed frame into the reorder buffer, then delivers as many frames as possible in order,
+     * unless another thread is already doing so. Deliveries are run outside the lock so that workers can
+     * keep completing frames meanwhile. Nothing is delivered after a failure.
+     */
+    private void complete(long sequence, Runnable delivery) {
+        synchronized (this) {
+            reorderBuffer[(int) (sequence % reorderBuffer.length)] = delivery;
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                int slot = (int) (nextDelivered % reorderBuffer.length);
+                next = reorderBuffer[slot];
+                if (next == null) {
+                    delivering = false;
+                    notifyAll();
+                    return;
+                }
+                reorderBuffer[slot] = null;
+                nextDelivered++;
+            }
+            inFlight.release();
+
+            if (failure == null) {
+                next.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules attempts to reconnect to a remote host after a session with it has been lost. The delay before
+ * each attempt is drawn at random between zero and an upper bound that starts at the base delay and doubles
+ * with every failed attempt, up to a maximum ("full jitter"). A short network blip is thus usually bridged
+ * within a fraction of a second, while during a long outage the remote host sees at most one attempt per
+ * maximum delay, and clients that lost their sessions at the same moment do not all retry in step.
+ */
+public class ReconnectManager {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Model model;
+    private final long baseDelay;
+    private final long maxDelay;
+    private int attempts = 0;
+    private ScheduledFuture<?> nextAttempt;
+    private boolean stopped = false;
+
+    /**
+     * @param model the calling object, which performs the actual attempts
+     * @param baseDelay the upper bound of the delay before the first attempt, in ms
+     * @param maxDelay the upper bound of the delay before any attempt, in ms
+     */
+    public ReconnectManager(Model model, long baseDelay, long maxDelay) {
+        this.model = model;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Schedules the next attempt.
+     * @return the delay before the attempt in ms, or -1 if the manager has been stopped
+     */
+    public synchronized long scheduleNextAttempt() {
+        if (stopped) {
+            return -1;
+        }
+
+        long bound = Math.min(maxDelay, baseDelay << Math.min(attempts, 30));
+        long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        attempts++;
+        nextAttempt = scheduler.schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    /**
+     * Cancels any scheduled attempt, e.g. because the user has given up or a session has started.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (nextAttempt != null) {
+            nextAttempt.cancel(false);
+        }
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+        model.reconnect(this);
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+Protocol between a client and the relay:
+
+1. client connects to the relay and sends a pairing token (at most MAX_TOKEN_LENGTH ASCII bytes) followed by '\n'
+
+2a. no other client is waiting with the same token      -> client waits until one arrives, then 3a
+2b. another client is waiting with the same token       -> 3b
+
+3a. relay sends ROLE_RESPONDER to the client that waited (it then acts as if it had accepted an incoming connection)
+3b. relay sends ROLE_INITIATOR to the client that arrived last (it then acts as if its outgoing connection had
+    been established)
+
+4. from here on the relay forwards every byte from one client to the other, untouched, until either client disconnects
+ */
+
+/**
+ * A headless relay for clients that cannot reach each other's server directly, e.g. because both are behind NAT.
+ * Pairs two clients connecting with the same token and then forwards their (already encrypted and signed) frames
+ * byte for byte, without decrypting or deserializing anything. All connections are served by a single selector
+ * thread using non-blocking channels and direct buffers, so one relay can carry thousands of paired sessions.
+ * The relay listens either on a TCP port or, as a bridge between clients on the same host, on a Unix domain socket.
+ */
+public class Relay implements Runnable {
+
+    public static final int DEFAULT_PORT = 27120;
+    public static final int MAX_TOKEN_LENGTH = 64;
+    public static final byte ROLE_INITIATOR = 'I';
+    public static final byte ROLE_RESPONDER = 'R';
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // a client that has not been paired this many ms after connecting is disconnected
+    private static final long PAIRING_TIMEOUT = Long.getLong("cryptochat.relay.pairing.timeout", 10 * 60 * 1000);
+    private static final Log log = Log.forClass(Relay.class);
+
+    // a Unix domain socket address of the form "unix:/path", or null to listen on the TCP port
+    private final String address;
+    private final int port;
+    // clients that have sent their token and are waiting for a partner, by token
+    private final Map<String, Endpoint> waiting = new HashMap<>();
+    // clients that have not been paired yet, whether or not they have sent their token, oldest first
+    private final Set<Endpoint> unpaired = new LinkedHashSet<>();
+    private volatile boolean active = true;
+
+    public Relay(int port) {
+        this.address = null;
+        this.port = port;
+    }
+
+    public Relay(String address) {
+        this.address = address;
+        this.port = 0;
+    }
+
+    /**
+     * Runs the relay on the port or "unix:" address given as the first argument, or on the default port.
+     */
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith(Transport.UNIX_SCHEME)) {
+            System.out.println("Relay listening on " + args[0]);
+            new Relay(args[0]).run();
+            return;
+        }
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        System.out.println("Relay listening on port " + port);
+        new Relay(port).run();
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = address != null ? UnixTransport.bind(address) : ServerSocketChannel.open()) {
+
+            if (address == null) {
+                serverChannel.bind(new InetSocketAddress(port));
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (active) {
+                // time out now and then so the thread can be deactivated
+                selector.select(1000);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                        continue;
+                    }
+
+                    Endpoint endpoint = (Endpoint) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(endpoint);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            // the peer's buffer can now be drained into this endpoint
+                            flush(endpoint.peer);
+                        }
+                    } catch (IOException e) {
+                        close(endpoint);
+                    }
+                }
+
+                closeExpired();
+            }
+
+        } catch (IOException e) {
+            log.error("Relay failed", e);
+        }
+    }
+
+    public void deactivate() {
+        active = false;
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        if (address == null) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        Endpoint endpoint = new Endpoint(channel);
+        endpoint.key = channel.register(selector, SelectionKey.OP_READ, endpoint);
+        unpaired.add(endpoint);
+    }
+
+    /**
+     * Disconnects the clients that have waited longer than PAIRING_TIMEOUT to be paired, so that a client that
+     * never sends its token, or whose partner never comes, does not hold a connection and a buffer forever.
+     */
+    private void closeExpired() {
+        long now = System.nanoTime();
+        while (!unpaired.isEmpty()) {
+            Endpoint oldest = unpaired.iterator().next();
+            if (now - oldest.connected < PAIRING_TIMEOUT * 1_000_000) {
+                return;
+            }
+            log.info("Closing a connection that was not paired within {} ms", PAIRING_TIMEOUT);
+            close(oldest);
+        }
+    }
+
+    /**
+     * Reads whatever is available from the endpoint. Until the endpoint has been paired, the bytes read
+     * are searched for the pairing token; afterwards they are forwarded to the peer. A client waiting for its
+     * partner is no longer read from once its buffer is full, as the selector would otherwise keep reporting it
+     * readable; reading resumes once it has been paired (see flush).
+     */
+    private void read(Endpoint endpoint) throws IOException {
+        int count = endpoint.channel.read(endpoint.buffer);
+
+        if (count == -1) {
+            endpoint.endOfStream = true;
+            endpoint.key.interestOps(endpoint.key.interestOps() & ~SelectionKey.OP_READ);
+            if (endpoint.peer == null || endpoint.buffer.position() == 0) {
+                close(endpoint);
+                return;
+            }
+        }
+
+        if (endpoint.token == null) {
+            readToken(endpoint);
+        } else if (endpoint.peer != null) {
+            flush(endpoint);
+        }
+
+        if (endpoint.peer == null && endpoint.channel.isOpen() && !endpoint.buffer.hasRemaining()) {
+            endpoint.key.interestOps(endpoint.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void readToken(Endpoint endpoint) throws IOException {
+        ByteBuffer buffer = endpoint.buffer;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                byte[] token = new byte[i];
+                buffer.flip();
+                buffer.get(token);
+                buffer.get();   // skip the newline
+                buffer.compact();
+                endpoint.token = new String(token, StandardCharsets.US_ASCII);
+                pair(endpoint);
+                return;
+            }
+        }
+
+        if (buffer.position() > MAX_TOKEN_LENGTH) {
+            close(endpoint);
+        }
+    }
+
+    /**
+     * Pairs the endpoint with a waiting endpoint that sent the same token, or makes it wait for one.
+     */
+    private void pair(Endpoint endpoint) throws IOException {
+        Endpoint other = waiting.remove(endpoint.token);
+        if (other == null || !other.channel.isOpen()) {
+            waiting.put(endpoint.token, endpoint);
+            return;
+        }
+
+        endpoint.peer = other;
+        other.peer = endpoint;
+        unpaired.remove(endpoint);
+        unpaired.remove(other);
+
+        // a single byte always fits in the send buffer of a fresh connection
+        if (other.channel.write(ByteBuffer.wrap(new byte[] {ROLE_RESPONDER})) != 1
+                || endpoint.channel.write(ByteBuffer.wrap(new byte[] {ROLE_INITIATOR})) != 1) {
+            close(endpoint);
+            return;
+        }
+
+        // anything either client sent after its token
+        flush(endpoint);
+        flush(other);
+    }
+
+    /**
+     * Writes as much as possible of the bytes buffered from the source endpoint to its peer. If the peer
+     * cannot take them all, reading from the source is suspended until the peer becomes writable again,
+     * so a slow client exerts back-pressure on a fast one instead of filling up the relay's memory.
+     */
+    private void flush(Endpoint source) throws IOException {
+        Endpoint target = source.peer;
+        if (target == null) {
+            return;
+        }
+
+        source.buffer.flip();
+        try {
+            target.channel.write(source.buffer);
+        } catch (IOException e) {
+            close(target);
+            return;
+        }
+        source.buffer.compact();
+
+        boolean pending = source.buffer.position() > 0;
+        if (!pending && source.endOfStream) {
+            close(source);
+            return;
+        }
+
+        int readOps = source.endOfStream || pending ? 0 : SelectionKey.OP_READ;
+        source.key.interestOps((source.key.interestOps() & ~SelectionKey.OP_READ) | readOps);
+        int writeOps = pending ? SelectionKey.OP_WRITE : 0;
+        target.key.interestOps((target.key.interestOps() & ~SelectionKey.OP_WRITE) | writeOps);
+    }
+
+    /**
+     * Closes the endpoint and its peer, if any.
+     */
+    private void close(Endpoint endpoint) {
+        if (endpoint.token != null) {
+            waiting.remove(endpoint.token, endpoint);
+        }
+        unpaired.remove(endpoint);
+        endpoint.close();
+        if (endpoint.peer != null) {
+            endpoint.peer.close();
+        }
+    }
+
+
+    /**
+     * One client connection, along with the bytes read from it that have not yet been written to its peer.
+     */
+    private static class Endpoint {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // when the client connected (System.nanoTime)
+        private final long connected = System.nanoTime();
+        private SelectionKey key;
+        private String token;
+        private Endpoint peer;
+        private boolean endOfStream = false;
+
+        private Endpoint(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Keeps track of the sequence numbers of the frames received from remote host, so that a frame that is
+ * replayed, or that is older than the last WINDOW frames, can be turned away. Frames may arrive somewhat out
+ * of order (a frame on one channel may overtake those on another), so rather than only remembering the
+ * highest sequence number, a bitmap records which of the WINDOW numbers below it have been seen.
+ * The bitmap is a ring of 64-bit blocks indexed by the sequence number, so moving the window on only clears
+ * the blocks it passes over, and nothing is allocated per frame.
+ * Sequence numbers start at 1; 0 is never valid.
+ * The ids of the messages delivered from a peer are kept track of the same way (see Model.getDeliveredMessages).
+ */
+public class ReplayWindow {
+
+    // how far behind the highest sequence number a frame may be, as far as the receiving ratchet can skip
+    public static final int WINDOW = Ratchet.MAX_SKIPPED;
+    // a power of two, with at least one block more than the window needs, as the oldest block is partly stale
+    private static final int BLOCKS = Integer.highestOneBit(WINDOW / Long.SIZE) * 2;
+
+    private final long[] bitmap = new long[BLOCKS];
+    private long highest = 0;
+
+    /**
+     * Tells whether a frame may be new, without recording it. Meant for turning frames away before any work
+     * is done on them; a frame that passes must still be accepted once verified.
+     * @param sequence the sequence number of the frame
+     * @return false if the frame has been accepted before, or is too old to tell
+     */
+    public synchronized boolean isFresh(long sequence) {
+        if (sequence <= 0) {
+            return false;
+        }
+        if (sequence > highest) {
+            return true;
+        }
+        if (highest - sequence >= WINDOW) {
+            return false;
+        }
+        return (bitmap[block(sequence)] & bit(sequence)) == 0;
+    }
+
+    /**
+     * Records a frame as received, unless it has been already.
+     * @param sequence the sequence number of the frame
+     * @return false if the frame has been accepted before, or is too old to tell
+     */
+    public synchronized boolean accept(long sequence) {
+        if (!isFresh(sequence)) {
+            return false;
+        }
+
+        if (sequence > highest) {
+            // clear the blocks the window moves onto, which still hold numbers from a lap before
+            long first = (highest >>> 6) + 1;
+            long last = sequence >>> 6;
+            for (long block = Math.max(first, last - BLOCKS + 1); block <= last; block++) {
+                bitmap[(int) (block & (BLOCKS - 1))] = 0;
+            }
+            highest = sequence;
+        }
+        bitmap[block(sequence)] |= bit(sequence);
+        return true;
+    }
+
+    /**
+     * @return the highest sequence number accepted so far, or 0
+     */
+    public synchronized long getHighest() {
+        return highest;
+    }
+
+    private static int block(long sequence) {
+        return (int) ((sequence >>> 6) & (BLOCKS - 1));
+    }
+
+    private static long bit(long sequence) {
+        return 1L << (sequence & (Long.SIZE - 1));
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+
+/**
+ * A part of a long message (see MessagePart), encrypted with an authenticated cipher (see
+ * CipherSuite.isAuthenticated) under a key of its own from the sender's Ratchet, instead of being signed. Only
+ * the two parties have the keys of the ratchet, so a part that decrypts can only have come from remote host;
+ * the frame's sequence number and the index of the key are authenticated along with it, so that neither
+ * can be changed on the way. The last part of a message is signed as usual, along with a digest of the whole
+ * message, so a long message costs a single signature rather than one per part.
+ */
+public class SealedPart implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+
+    public SealedPart(int index, byte[] iv, byte[] ciphertext) {
+        this.index = index;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+    }
+
+    /**
+     * @return the index of the part's key in the sender's Ratchet
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the IV (or nonce) the part was encrypted with
+     */
+    public byte[] getIv() {
+        return iv;
+    }
+
+    /**
+     * @return the serialized MessagePart, encrypted, followed by the cipher's authentication tag
+     */
+    public byte[] getCiphertext() {
+        return ciphertext;
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.Serializable;
+
+/**
+ * A ciphered frame, along with the sequence number that was signed into it. The number is sent once more,
+ * in the clear, in the header of the frame's first chunk, so that remote host can turn away a replayed frame
+ * before verifying it; once verified, the signed number must match the one in the header.
+ * The frame is a SignedObject, or, for a part of a long message, a SealedPart, which authenticates the
+ * sequence number rather than signing it.
+ */
+public class SequencedFrame {
+
+    private final long sequence;
+    private final Serializable payload;
+
+    public SequencedFrame(long sequence, Serializable payload) {
+        this.sequence = sequence;
+        this.payload = payload;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the SignedObject or SealedPart to be written
+     */
+    public Serializable getPayload() {
+        return payload;
+    }
+}
@@ -1,94 +1,193 @@
-import javafx.concurrent.Task;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutionException;
+import java.security.PublicKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A Runnable tasked with running a server that listens to the given port.
+ * A Runnable tasked with running a server that listens to the given address (see Transport) and port.
  * Runs until cancelled or until an IOException occurs.
+ * A TCP server can accept connections on several threads at once, so that a storm of incoming connections
+ * does not queue up behind a single accept loop. Where the platform supports SO_REUSEPORT, each acceptor
+ * has a listener of its own, bound to the same port, and the kernel spreads the connections among them;
+ * elsewhere the acceptors share one listener.
+ * Accepted connections are handled by a bounded pool of threads, as reading the announcement and prompting
+ * the user both wait on someone else; when every thread is taken, further connections are closed at once, so
+ * that a flood of connections that announce nothing costs neither unbounded threads nor the acceptors' time.
  */
 public class Server implements Runnable {
+    private static final Log log = Log.forClass(Server.class);
+
     private final Model model;
+    private final String address;
     private final int port;
-    private boolean active = true;
+    private final int acceptors;
+    private final int backlog;
+    private final Transport transport;
+    // reads the announcement of each accepted connection, and then accepts or declines it (see tryConnection)
+    private final ExecutorService connectionHandlers;
+    private volatile boolean active = true;
 
-    public Server(Model model, int port) {
+    /**
+     * @param model the model to report to
+     * @param address the address to listen on, empty for all local TCP addresses
+     * @param port the TCP port to listen on, 0 for any free port
+     * @param acceptors the number of threads accepting connections, for TCP servers only
+     * @param backlog the most connections waiting to be accepted, per listener
+     * @param connectionHandlers the most accepted connections handled at once
+     */
+    public Server(Model model, String address, int port, int acceptors, int backlog, int connectionHandlers) {
         this.model = model;
+        this.address = address;
         this.port = port;
+        this.transport = Transport.forAddress(address);
+        // the other transports' listeners cannot be accepted on from several threads at once
+        this.acceptors = transport == Transport.TCP ? Math.max(1, acceptors) : 1;
+        this.backlog = backlog;
+        this.connectionHandlers = new ThreadPoolExecutor(0, connectionHandlers, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "connection-handler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
     }
 
     @Override
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        boolean sharePort = acceptors > 1 && transport.canSharePort();
+
+        try (Transport.Listener listener = transport.listen(address, port, backlog, sharePort)) {
+
+            model.serverStarted(listener.getDescription());
+            log.info("Accepting connections on {} with {} thread(s){}", listener.getDescription(), acceptors,
+                    sharePort ? " sharing the port" : "");
 
-            // set timeout so thread does not block indefinitely
-            serverSocket.setSoTimeout(2000);
+            for (int i = 1; i < acceptors; i++) {
+                startAcceptor(sharePort ? null : listener, listener.getPort());
+            }
+            acceptConnections(listener);
 
-            model.serverStarted();
+        } catch (IOException e) {
+            log.error("Server on {} port {} failed", address, port, e);
+            model.serverError(this);
+        }
+    }
 
-            while (active) {
+    /**
+     * Starts an additional acceptor on a dedicated thread.
+     * @param listener the listener to share, or null to bind one of its own to the same port
+     * @param boundPort the port the first listener is bound to (which differs from port if that is 0)
+     */
+    private void startAcceptor(Transport.Listener listener, int boundPort) {
+        Thread thread = new Thread(() -> {
+            if (listener != null) {
+                acceptConnections(listener);
+                return;
+            }
+
+            try (Transport.Listener own = transport.listen(address, boundPort, backlog, true)) {
+                acceptConnections(own);
+            } catch (IOException e) {
+                // the other acceptors carry on
+                log.warn("Could not start an acceptor on {} port {}", address, boundPort, e);
+            }
+        }, "acceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Accepts connections until the server is deactivated.
+     */
+    private void acceptConnections(Transport.Listener listener) {
+        while (active) {
+            try {
+                // time out so thread does not block indefinitely
+                Transport.Connection connection = listener.accept(2000);
                 try {
-                    Socket socket = serverSocket.accept();
-                    tryConnection(socket);
+                    connectionHandlers.execute(() -> tryConnection(connection));
+                } catch (RejectedExecutionException e) {
+                    log.info("Closing the connection from {}, as too many others are being handled",
+                            connection.getRemoteAddress());
+                    closeQuietly(connection);
+                }
 
-                } catch (SocketTimeoutException e) {
-                    // ignore
+            } catch (SocketTimeoutException e) {
+                // ignore
 
-                } catch (IOException e) {
-                    e.printStackTrace();
+            } catch (IOException e) {
+                if (active) {
+                    log.warn("Could not accept a connection on {}", address, e);
                 }
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            model.serverError();
         }
     }
 
     /**
      * Checks whether to accept or decline starting a chat session for the incoming connection.
-     * If there is no active session ongoing, prompts the user for action.
-     * @param socket the socket opened for the incoming connection
+     * Reads the identity remote host announces first, then, if there is no active session ongoing, accepts a
+     * known peer straight away, or else prompts the user for action. Runs on one of the connection handlers,
+     * and only claims the incoming connection once the announcement has been read, so that a remote host that
+     * connects and then sends nothing holds up neither the acceptor nor the invites that come after it.
+     * @param connection the connection opened for the incoming connection
      */
-    private void tryConnection(Socket socket) {
-        if (model.hasOngoingChatSession()) {
-            declineConnection(socket);
-            return;
-        }
+    private void tryConnection(Transport.Connection connection) {
+        var event = new ChatEvents.ConnectionAccepted();
+        event.begin();
 
-        Task<Boolean> confirmation = model.promptUserForConfirmation(socket);
+        boolean accepted = false;
+        PublicKey identity = null;
         try {
-            if (confirmation.get()) {
-                acceptConnection(socket);
+            identity = Identity.readAnnouncement(connection);
+        } catch (IOException e) {
+            log.info("No identity announced by {}, closing the connection", connection.getRemoteAddress(), e);
+        }
+
+        if (identity == null) {
+            closeQuietly(connection);
+        } else if (!model.incomingConnectionStarted(connection)) {
+            declineConnection(connection, identity);
+        } else {
+            accepted = model.confirmIncomingConnection(connection, identity);
+            ChatSession toBeAccepted = new ChatSession(connection, model, Command.ACCEPTED, identity);
+            // the user may have started or cancelled something else while the prompt was showing
+            accepted = accepted && model.incomingConnectionAccepted(connection, toBeAccepted);
+            if (accepted) {
+                acceptConnection(toBeAccepted);
             } else {
-                declineConnection(socket);
+                model.incomingConnectionEnded(connection);
+                declineConnection(connection, identity);
             }
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-            declineConnection(socket);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = connection.getRemoteAddress();
+            event.accepted = accepted;
+            event.commit();
         }
     }
 
     /**
-     * Starts a new ChatSession on a dedicated thread charged with accepting the invite.
-     * @param socket the socket opened for the incoming connection
+     * Starts a ChatSession on a dedicated thread charged with accepting the invite.
+     * @param toBeAccepted the session constructed for the incoming connection
      */
-    private void acceptConnection(Socket socket) {
-        ChatSession toBeAccepted = new ChatSession(socket, model, Command.ACCEPTED);
-
+    private void acceptConnection(ChatSession toBeAccepted) {
         Thread thread = new Thread(toBeAccepted);
         thread.start();
     }
 
     /**
      * Starts a new ChatSession on a dedicated thread charged with declining the invite.
-     * @param socket the socket opened for the incoming connection
+     * @param connection the connection opened for the incoming connection
+     * @param identity the identity remote host announced
      */
-    private void declineConnection(Socket socket) {
-        ChatSession toBeDeclined = new ChatSession(socket, model, Command.DECLINED);
+    private void declineConnection(Transport.Connection connection, PublicKey identity) {
+        ChatSession toBeDeclined = new ChatSession(connection, model, Command.DECLINED, identity);
 
         Thread thread = new Thread(toBeDeclined);
         thread.start();
@@ -96,9 +195,26 @@ public class Server implements Runnable {
 
     public void deactivate() {
         active = false;
+        connectionHandlers.shutdown();
     }
 
     public boolean isActive() {
         return active;
     }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private void closeQuietly(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/**
+ * An immutable snapshot of the application's state of connection: the phase, as shown to the user, along with
+ * the objects doing the work in it. Model keeps the current snapshot in an AtomicReference and replaces it as a
+ * whole by compare-and-set, so every event is applied to the state it was checked against, and an event from an
+ * object that is no longer part of the current state (e.g. a connection attempt that has since been cancelled)
+ * can be recognised and ignored.
+ */
+public class SessionState {
+
+    public static final SessionState INACTIVE = new SessionState(ConnectionState.INACTIVE, null, null, null, null, null);
+
+    private final ConnectionState phase;
+    // the address the user connected to, if the local user initiated the session
+    private final String address;
+    private final OutgoingConnection outgoingConnection;
+    // an incoming connection waiting for the user to accept or decline it
+    private final Transport.Connection incomingConnection;
+    private final ChatSession chatSession;
+    // set while reconnecting after a lost session
+    private final ReconnectManager reconnectManager;
+
+    private SessionState(ConnectionState phase, String address, OutgoingConnection outgoingConnection,
+                         Transport.Connection incomingConnection, ChatSession chatSession,
+                         ReconnectManager reconnectManager) {
+        this.phase = phase;
+        this.address = address;
+        this.outgoingConnection = outgoingConnection;
+        this.incomingConnection = incomingConnection;
+        this.chatSession = chatSession;
+        this.reconnectManager = reconnectManager;
+    }
+
+    public static SessionState outgoing(String address, OutgoingConnection outgoingConnection) {
+        return new SessionState(ConnectionState.CONNECTING, address, outgoingConnection, null, null, null);
+    }
+
+    public static SessionState incoming(Transport.Connection incomingConnection) {
+        return new SessionState(ConnectionState.CONNECTING, null, null, incomingConnection, null, null);
+    }
+
+    /**
+     * @return this state with the connection (outgoing or incoming) replaced by the session started on it
+     */
+    public SessionState withChatSession(ChatSession chatSession) {
+        return new SessionState(phase, address, null, null, chatSession, reconnectManager);
+    }
+
+    public SessionState withOutgoingConnection(OutgoingConnection outgoingConnection) {
+        return new SessionState(phase, address, outgoingConnection, incomingConnection, chatSession, reconnectManager);
+    }
+
+    public SessionState withoutReconnectManager() {
+        return new SessionState(phase, address, outgoingConnection, incomingConnection, chatSession, null);
+    }
+
+    /**
+     * @return the state of waiting for the manager's next attempt to reconnect to the same address
+     */
+    public SessionState reconnecting(ReconnectManager reconnectManager) {
+        return new SessionState(ConnectionState.CONNECTING, address, null, null, null, reconnectManager);
+    }
+
+    public SessionState active() {
+        return new SessionState(ConnectionState.ACTIVE_SESSION, address, null, null, chatSession, null);
+    }
+
+    public SessionState cancelling() {
+        return new SessionState(ConnectionState.CANCELLING_OUTGOING_CONNECTION, address, outgoingConnection,
+                incomingConnection, chatSession, null);
+    }
+
+    public SessionState ending() {
+        return new SessionState(ConnectionState.ENDING_SESSION, address, null, null, chatSession, null);
+    }
+
+    public ConnectionState getPhase() {
+        return phase;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public OutgoingConnection getOutgoingConnection() {
+        return outgoingConnection;
+    }
+
+    public Transport.Connection getIncomingConnection() {
+        return incomingConnection;
+    }
+
+    public ChatSession getChatSession() {
+        return chatSession;
+    }
+
+    public ReconnectManager getReconnectManager() {
+        return reconnectManager;
+    }
+
+    /**
+     * @return true if nothing is running in this state but a reconnect manager waiting for its next attempt
+     */
+    public boolean isWaitingToReconnect() {
+        return reconnectManager != null && outgoingConnection == null && chatSession == null;
+    }
+
+    @Override
+    public String toString() {
+        return phase.toString();
+    }
+}
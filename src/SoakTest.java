@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test for long sessions: pushes a large number of chat messages through a session between two parties
+ * in the same JVM (over the in-memory transport, unless another address is given) and samples the heap after
+ * a full GC, along with the time spent in GC, at regular intervals. The memory used by a session must not
+ * grow with its length, so the test fails (exit status 1) if the heap after GC at the end exceeds the heap
+ * after the warm-up by more than ALLOWED_GROWTH. Run with a small heap (e.g. -Xmx256m) to make a leak show early.
+ * Given a network profile (see NetworkEmulator.Profile), the session goes through a NetworkEmulator.
+ *
+ * Usage: java SoakTest [messages] [message length] [address] [network profile]
+ */
+public class SoakTest {
+
+    // the number of messages sent but not yet acknowledged at any time
+    private static final int WINDOW = 1000;
+    private static final long SAMPLE_INTERVAL = 10_000;
+    private static final long ALLOWED_GROWTH = 16 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long messages = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String address = args.length > 2 ? args[2] : "mem:soak";
+        NetworkEmulator.Profile profile = args.length > 3 ? NetworkEmulator.Profile.parse(args[3]) : null;
+        Path directory = Files.createTempDirectory("cryptochat-soak");
+
+        Semaphore window = new Semaphore(WINDOW);
+        SoakModel initiator = new SoakModel(directory.resolve("initiator"), window);
+        SoakModel responder = new SoakModel(directory.resolve("responder"), null);
+
+        Transport transport = Transport.forAddress(address);
+        NetworkEmulator emulator = null;
+        try (Transport.Listener listener = transport.listen(address, 0)) {
+            Transport.Connection connection;
+            if (profile != null) {
+                emulator = NetworkEmulator.inFrontOf(address, listener.getPort(), profile);
+                connection = transport.connect(emulator.getAddress(), emulator.getPort(), 5000);
+            } else {
+                connection = transport.connect(address, listener.getPort(), 5000);
+            }
+            new Thread(new ChatSession(listener.accept(5000), responder, Command.ACCEPTED)).start();
+            new Thread(new ChatSession(connection, initiator)).start();
+        }
+        ChatSession session = initiator.awaitSession();
+        responder.awaitSession();
+
+        String text = "x".repeat(length);
+        long warmUp = Math.min(messages / 10, 100_000);
+        long start = System.nanoTime();
+        long nextSample = start;
+        long baseline = -1;
+
+        System.out.printf("Sending %d messages of %d characters over %s%s%n", messages, length, address,
+                profile != null ? " with " + profile : "");
+        for (long i = 0; i < messages; i++) {
+            if (!window.tryAcquire(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No acknowledgement for 60 seconds after " + i + " messages");
+            }
+            session.writeToRemoteHost(text);
+
+            if (i == warmUp) {
+                baseline = sample(start, i, initiator);
+            } else if (System.nanoTime() >= nextSample) {
+                sample(start, i, initiator);
+                nextSample = System.nanoTime() + SAMPLE_INTERVAL * 1_000_000;
+            }
+        }
+
+        // wait for the last acknowledgements
+        if (!window.tryAcquire(WINDOW, 60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Not all messages were acknowledged");
+        }
+        long end = sample(start, messages, initiator);
+
+        session.cancel();
+        initiator.close();
+        responder.close();
+
+        long growth = end - baseline;
+        System.out.printf("Heap after GC: %.1f MiB after warm-up, %.1f MiB at the end (%+.1f MiB), %d errors%n",
+                mebibytes(baseline), mebibytes(end), mebibytes(growth), initiator.errors.get() + responder.errors.get());
+        boolean passed = growth <= ALLOWED_GROWTH && initiator.errors.get() + responder.errors.get() == 0;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Prints the progress along with the heap after a full GC, and the number and total time of collections.
+     * @return the heap used after GC, in bytes
+     */
+    private static long sample(long start, long sent, SoakModel initiator) {
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%7.0f s %,12d sent %,12d delivered %8.0f msg/s | heap after GC %7.1f MiB | GC %,d collections, %,d ms%n",
+                seconds, sent, initiator.delivered.get(), initiator.delivered.get() / Math.max(seconds, 1e-3),
+                mebibytes(heap), collections, collectionTime);
+        return heap;
+    }
+
+    private static double mebibytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+
+    /**
+     * A model without a user interface, counting what happens instead of displaying it.
+     */
+    private static class SoakModel extends Model {
+        private final Path directory;
+        // released for every acknowledged message, if given
+        private final Semaphore window;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile ChatSession session;
+        private Outbox outbox;
+        private Identity identity;
+
+        private SoakModel(Path directory, Semaphore window) {
+            super(null);
+            this.directory = directory;
+            this.window = window;
+        }
+
+        private ChatSession awaitSession() throws InterruptedException {
+            if (!started.await(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The session did not start");
+            }
+            return session;
+        }
+
+        private synchronized void close() {
+            if (outbox != null) {
+                outbox.close();
+            }
+        }
+
+        @Override
+        public synchronized Outbox getOutbox(String fingerprint) {
+            if (outbox == null) {
+                try {
+                    outbox = new Outbox(directory, fingerprint);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return outbox;
+        }
+
+        @Override
+        public synchronized Identity getIdentity() {
+            if (identity == null) {
+                try {
+                    identity = Identity.load(directory.resolve("identity"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return identity;
+        }
+
+        @Override
+        public void sessionStarted(ChatSession chatSession, String ownFingerprint, String othersFingerprint) {
+            session = chatSession;
+            started.countDown();
+        }
+
+        @Override
+        public void sessionEnded(ChatSession chatSession, String message, Object... args) {
+            System.out.println(Log.format(message, args));
+        }
+
+        @Override
+        public void sessionLost(ChatSession chatSession, String message, Object... args) {
+            errors.incrementAndGet();
+            System.out.println(Log.format(message, args));
+        }
+
+        @Override
+        public void incomingConnectionDeclined(String message, Object... args) {
+            System.out.println(Log.format(message, args));
+        }
+
+        @Override
+        public void readMessage(String message, Object... args) {
+        }
+
+        @Override
+        public void wroteMessage(String message) {
+        }
+
+        @Override
+        public void messageDelivered(String message, long roundTripNanos) {
+            delivered.incrementAndGet();
+            if (window != null) {
+                window.release();
+            }
+        }
+
+        @Override
+        public void errorWritingMessage(String message) {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void resendingMessages(int count, String address) {
+        }
+    }
+}
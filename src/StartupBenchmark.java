@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the cold-start path of the application: how long after the start of a fresh JVM the first
+ * handshake completes, with and without the background warm-up done by CryptoChat at startup.
+ * Every run takes place in a new JVM, started by this class, so nothing is warm unless the warm-up made it so.
+ *
+ * In each run the user is assumed to start a session a given number of milliseconds after the JVM
+ * has started (by default 500, about the time it takes for the window to show); the warm-up, if enabled,
+ * runs from the start of the JVM. The handshake is the one ChatSession performs (an ACCEPTED command
+ * followed by the key exchange), between two parties in the same JVM over a loopback socket, or over any
+ * other transport given by its listen address (e.g. "mem:benchmark" to leave out the network stack entirely).
+ * Given a network profile (see NetworkEmulator.Profile), the handshake goes through a NetworkEmulator, started
+ * along with the listener, to see how the handshake fares on a slow link (e.g. "delay=150,bandwidth=32k").
+ *
+ * The time to the first window can only be measured with a display; run the application itself with
+ * -Dcryptochat.startup.report=true to have both milestones printed.
+ *
+ * Usage: java StartupBenchmark [runs] [delay in ms] [address] [network profile]
+ */
+public class StartupBenchmark {
+
+    private static final Log log = Log.forClass(StartupBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            runChild(Boolean.parseBoolean(args[1]), Long.parseLong(args[2]), args[3], args.length > 4 ? args[4] : null);
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 500;
+        String address = args.length > 2 ? args[2] : "127.0.0.1";
+        String profile = args.length > 3 ? NetworkEmulator.Profile.parse(args[3]).toString() : null;
+
+        for (boolean warmUp : new boolean[] {false, true}) {
+            List<Long> handshakes = new ArrayList<>();
+            List<Long> totals = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                long[] result = startChild(warmUp, delay, address, profile);
+                handshakes.add(result[0]);
+                totals.add(result[1]);
+            }
+            System.out.printf("%-12s handshake: median %4d ms, min %4d ms, max %4d ms | JVM start to first handshake: median %4d ms%n",
+                    warmUp ? "warm-up:" : "no warm-up:",
+                    median(handshakes), Collections.min(handshakes), Collections.max(handshakes), median(totals));
+        }
+    }
+
+    /**
+     * Starts a new JVM running a single measurement.
+     * @return the duration of the handshake and the time from the start of the JVM to its completion, in ms
+     */
+    private static long[] startChild(boolean warmUp, long delay, String address, String profile)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), "--child", String.valueOf(warmUp), String.valueOf(delay), address));
+        if (profile != null) {
+            command.add(profile);
+        }
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        String output = new String(process.getInputStream().readAllBytes()).trim();
+        if (process.waitFor() != 0) {
+            throw new IOException("Benchmark run failed: " + output);
+        }
+        String[] fields = output.split(" ");
+        return new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+    }
+
+    /**
+     * Runs in the child JVM: optionally starts the warm-up as CryptoChat does, waits for the "user",
+     * then performs a handshake and prints its duration and the time since the start of the JVM.
+     */
+    private static void runChild(boolean warmUp, long delay, String address, String profile) throws Exception {
+        if (warmUp) {
+            Thread warmUpThread = new Thread(Cryptographer::warmUp);
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        }
+
+        Thread.sleep(delay);
+
+        long start = System.nanoTime();
+        Transport transport = Transport.forAddress(address);
+        try (Transport.Listener listener = transport.listen(address, 0)) {
+            Thread responder = new Thread(() -> {
+                try (Transport.Connection connection = listener.accept(0)) {
+                    var oos = new ObjectOutputStream(connection.getOutputStream());
+                    var ois = new ObjectInputStream(connection.getInputStream());
+                    oos.writeObject(Command.ACCEPTED);
+                    oos.flush();
+                    new Cryptographer().exchangeKeys(ois, oos);
+                } catch (Exception e) {
+                    log.error("Responder's handshake on {} failed", address, e);
+                }
+            });
+            responder.start();
+
+            NetworkEmulator emulator = profile != null
+                    ? NetworkEmulator.inFrontOf(address, listener.getPort(), NetworkEmulator.Profile.parse(profile))
+                    : null;
+            try (Transport.Connection connection = emulator != null
+                    ? transport.connect(emulator.getAddress(), emulator.getPort(), 0)
+                    : transport.connect(address, listener.getPort(), 0)) {
+                var oos = new ObjectOutputStream(connection.getOutputStream());
+                var ois = new ObjectInputStream(connection.getInputStream());
+                if (ois.readObject() != Command.ACCEPTED) {
+                    throw new IOException("Unexpected response");
+                }
+                new Cryptographer().exchangeKeys(ois, oos);
+                StartupTimer.mark(StartupTimer.FIRST_HANDSHAKE);
+            }
+            responder.join();
+            if (emulator != null) {
+                emulator.close();
+            }
+        }
+        long handshake = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println(handshake + " " + StartupTimer.get(StartupTimer.FIRST_HANDSHAKE));
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
@@ -0,0 +1,41 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records how long after the start of the JVM the application reaches its startup milestones, e.g. showing
+ * its first window or completing its first handshake. Only the first occurrence of each milestone counts.
+ * If the system property cryptochat.startup.report is set to true, each milestone is printed on standard
+ * output as it is reached.
+ */
+public final class StartupTimer {
+
+    public static final String FIRST_WINDOW = "first window";
+    public static final String FIRST_HANDSHAKE = "first handshake";
+
+    private static final boolean REPORT = Boolean.getBoolean("cryptochat.startup.report");
+    private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final Map<String, Long> milestones = new ConcurrentHashMap<>();
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Records a milestone, unless it has been reached before.
+     * @param milestone the name of the milestone
+     */
+    public static void mark(String milestone) {
+        long elapsed = System.currentTimeMillis() - JVM_START;
+        if (milestones.putIfAbsent(milestone, elapsed) == null && REPORT) {
+            System.out.println("Startup: " + milestone + " after " + elapsed + " ms");
+        }
+    }
+
+    /**
+     * @param milestone the name of the milestone
+     * @return the number of milliseconds from the start of the JVM to the milestone, or -1 if not yet reached
+     */
+    public static long get(String milestone) {
+        return milestones.getOrDefault(milestone, -1L);
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+/**
+ * The TCP transport: plain Sockets and ServerSockets.
+ */
+public class TcpTransport implements Transport {
+
+    // the backlog of a ServerSocket constructed without one
+    private static final int DEFAULT_BACKLOG = 50;
+    private static final boolean REUSE_PORT_SUPPORTED = isReusePortSupported();
+
+    @Override
+    public Connection connect(String address, int port, int timeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketConnection(socket);
+    }
+
+    @Override
+    public Listener listen(String address, int port) throws IOException {
+        return listen(address, port, DEFAULT_BACKLOG, false);
+    }
+
+    /**
+     * Shares the port by means of SO_REUSEPORT, with which the kernel spreads incoming connections among
+     * the listeners.
+     */
+    @Override
+    public Listener listen(String address, int port, int backlog, boolean sharePort) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            if (sharePort) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(address.isEmpty()
+                    ? new InetSocketAddress(port)
+                    : new InetSocketAddress(InetAddress.getByName(address), port), backlog);
+        } catch (IOException | UnsupportedOperationException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return new ServerSocketListener(serverSocket);
+    }
+
+    @Override
+    public boolean canSharePort() {
+        return REUSE_PORT_SUPPORTED;
+    }
+
+
+    private static boolean isReusePortSupported() {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            return serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A connection over a TCP socket, e.g. one connected by OutgoingConnection.
+     */
+    public static class SocketConnection implements Connection {
+        private final Socket socket;
+
+        public SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getInetAddress().toString();
+        }
+
+        @Override
+        public String getDescription() {
+            return socket.getInetAddress().toString()
+                    + " on port " + socket.getPort()
+                    + " (local port is "
+                    + socket.getLocalPort() + ")";
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static class ServerSocketListener implements Listener {
+        private final ServerSocket serverSocket;
+
+        private ServerSocketListener(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public Connection accept(int timeout) throws IOException {
+            serverSocket.setSoTimeout(timeout);
+            return new SocketConnection(serverSocket.accept());
+        }
+
+        @Override
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public String getDescription() {
+            InetAddress address = serverSocket.getInetAddress();
+            return (address.isAnyLocalAddress() ? "" : address + " ") + "port " + serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * An incremental in-memory inverted index over the lines of the chat area, for searching the transcript.
+ * Lines are tokenized and indexed on a background thread, and searches are run on the same thread, so the
+ * JavaFx Application Thread never waits for either.
+ * The index is made up of segments of a fixed number of lines each. When the number of indexed lines
+ * exceeds the given maximum, the oldest segment is dropped as a whole, which bounds the memory used
+ * however long the transcript grows (the lines stay in the chat area, but can no longer be found).
+ */
+public class TranscriptIndex {
+
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    /**
+     * A line that matches a search, identified by its position in the chat area.
+     */
+    public static class Match {
+        private final int offset;
+        private final int length;
+
+        private Match(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transcript-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int maxSegments;
+    // newest segment last; only accessed on the executor's thread
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * @param maxLines the (approximate) maximum number of lines to keep in the index
+     */
+    public TranscriptIndex(int maxLines) {
+        maxSegments = Math.max(1, maxLines / SEGMENT_SIZE);
+    }
+
+    /**
+     * Adds a line to the index. Returns immediately; the line is indexed in the background.
+     * @param offset the position of the line in the chat area
+     * @param line the line
+     */
+    public void add(int offset, String line) {
+        executor.execute(() -> index(offset, line));
+    }
+
+    /**
+     * Searches for the lines containing all words of the query, each word matching any word that starts
+     * with it (so results can be shown while the user is still typing). Runs in the background.
+     * @param query the words to search for
+     * @param maxResults the maximum number of matches to return
+     * @param callback called on the background thread with the matches, newest first
+     */
+    public void search(String query, int maxResults, Consumer<List<Match>> callback) {
+        executor.execute(() -> callback.accept(find(query, maxResults)));
+    }
+
+    private void index(int offset, String line) {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.size == SEGMENT_SIZE) {
+            segment = new Segment();
+            segments.addLast(segment);
+            if (segments.size() > maxSegments) {
+                segments.removeFirst();
+            }
+        }
+
+        int lineNumber = segment.size++;
+        segment.offsets[lineNumber] = offset;
+        segment.lengths[lineNumber] = line.length();
+
+        for (String term : tokenize(line)) {
+            IntList postings = segment.postings.computeIfAbsent(term, key -> new IntList());
+            // a word occurring more than once in a line is only indexed once
+            if (postings.size == 0 || postings.last() != lineNumber) {
+                postings.add(lineNumber);
+            }
+        }
+    }
+
+    private List<Match> find(String query, int maxResults) {
+        List<String> terms = tokenize(query);
+        List<Match> matches = new ArrayList<>();
+        if (terms.isEmpty()) {
+            return matches;
+        }
+
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        while (newestFirst.hasNext() && matches.size() < maxResults) {
+            Segment segment = newestFirst.next();
+
+            BitSet lines = null;
+            for (String term : terms) {
+                BitSet termLines = new BitSet(segment.size);
+                for (IntList postings : segment.postings.subMap(term, true, term + Character.MAX_VALUE, true).values()) {
+                    for (int i = 0; i < postings.size; i++) {
+                        termLines.set(postings.values[i]);
+                    }
+                }
+
+                if (lines == null) {
+                    lines = termLines;
+                } else {
+                    lines.and(termLines);
+                }
+                if (lines.isEmpty()) {
+                    break;
+                }
+            }
+
+            for (int line = lines.previousSetBit(segment.size - 1);
+                 line >= 0 && matches.size() < maxResults;
+                 line = lines.previousSetBit(line - 1)) {
+                matches.add(new Match(segment.offsets[line], segment.lengths[line]));
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Splits the text into lower case words (runs of letters and digits).
+     */
+    private static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase());
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+
+    /**
+     * A fixed number of consecutive lines, with an index of their own.
+     */
+    private static class Segment {
+        private final int[] offsets = new int[SEGMENT_SIZE];
+        private final int[] lengths = new int[SEGMENT_SIZE];
+        // sorted, so that all words starting with a given prefix can be found
+        private final TreeMap<String, IntList> postings = new TreeMap<>();
+        private int size = 0;
+    }
+
+    /**
+     * A growable list of ints, the line numbers (within a segment) containing a word.
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int last() {
+            return values[size - 1];
+        }
+    }
+}
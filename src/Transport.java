@@ -0,0 +1,124 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of connecting to remote hosts and of listening for connections from them. The transport is chosen
+ * by the form of the address: "unix:/path/to/socket" is a Unix domain socket, for peers and relays on the
+ * same host; "mem:name" is an endpoint inside the same JVM, for benchmarks and tests that should not depend
+ * on the kernel's network stack; anything else is a host name or IP address reached over TCP.
+ *
+ * Whatever the transport, a connection behaves like a connected Socket: blocking streams, and reads that
+ * throw a SocketTimeoutException once the read timeout has passed.
+ */
+public interface Transport {
+
+    String UNIX_SCHEME = "unix:";
+    String MEMORY_SCHEME = "mem:";
+
+    Transport TCP = new TcpTransport();
+    Transport UNIX = new UnixTransport();
+    Transport MEMORY = new MemoryTransport();
+
+    /**
+     * @param address an address of any of the supported forms
+     * @return the transport used to reach the address
+     */
+    static Transport forAddress(String address) {
+        if (address.startsWith(UNIX_SCHEME)) {
+            return UNIX;
+        }
+        if (address.startsWith(MEMORY_SCHEME)) {
+            return MEMORY;
+        }
+        return TCP;
+    }
+
+    static boolean isTcp(String address) {
+        return forAddress(address) == TCP;
+    }
+
+    /**
+     * Connects to the address.
+     * @param port the port to connect to, ignored by transports without ports
+     * @param timeout the connect timeout in ms, 0 meaning none
+     * @throws java.net.SocketTimeoutException if the timeout expires before the connection is established
+     */
+    Connection connect(String address, int port, int timeout) throws IOException;
+
+    /**
+     * Starts listening for connections to the address.
+     * @param address the address to listen on; for TCP an empty string means all local addresses
+     * @param port the port to listen on (0 for any free port), ignored by transports without ports
+     */
+    Listener listen(String address, int port) throws IOException;
+
+    /**
+     * Starts listening for connections to the address, with a given backlog, and optionally on a port that
+     * other listeners may be bound to as well (see canSharePort). Transports without these ignore them.
+     * @param backlog the most connections waiting to be accepted
+     * @param sharePort true to let other listeners bind to the same address and port, which then share the
+     *                  incoming connections
+     */
+    default Listener listen(String address, int port, int backlog, boolean sharePort) throws IOException {
+        return listen(address, port);
+    }
+
+    /**
+     * @return true if several listeners can be bound to the same address and port
+     */
+    default boolean canSharePort() {
+        return false;
+    }
+
+
+    /**
+     * A connection to a remote host.
+     */
+    interface Connection extends Closeable {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Sets how long a read may block before throwing a SocketTimeoutException, in ms (0 meaning forever).
+         * The connection stays usable after a timeout.
+         */
+        void setReadTimeout(int timeout) throws IOException;
+
+        /**
+         * @return remote host's address, identifying remote host across connections (e.g. "/192.168.0.2")
+         */
+        String getRemoteAddress();
+
+        /**
+         * @return a description of both ends of the connection, for the user
+         */
+        String getDescription();
+    }
+
+    /**
+     * Accepts connections to a local address.
+     */
+    interface Listener extends Closeable {
+
+        /**
+         * Waits for an incoming connection.
+         * @param timeout how long to wait in ms, 0 meaning forever
+         * @throws java.net.SocketTimeoutException if no connection arrives in time
+         */
+        Connection accept(int timeout) throws IOException;
+
+        /**
+         * @return the port listened on, or 0 for transports without ports
+         */
+        int getPort();
+
+        /**
+         * @return a description of the address listened on, for the user
+         */
+        String getDescription();
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The Unix domain socket transport, for peers and relays on the same host. Addresses are of the form
+ * "unix:/path/to/socket". Socket channels of this family have no socket adaptor and hence no SO_TIMEOUT,
+ * so the channels are non-blocking and the read timeout is implemented with a selector.
+ */
+public class UnixTransport implements Transport {
+
+    @Override
+    public Connection connect(String address, int port, int timeout) throws IOException {
+        // connecting to a local socket either succeeds or fails at once, so there is no need for a timeout
+        SocketChannel channel = SocketChannel.open(socketAddress(address));
+        try {
+            return new ChannelConnection(channel, address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Listener listen(String address, int port) throws IOException {
+        ServerSocketChannel serverChannel = bind(address);
+        try {
+            return new ChannelListener(serverChannel, address);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a server channel bound to the socket file of the address, replacing the file of a previous run.
+     */
+    public static ServerSocketChannel bind(String address) throws IOException {
+        UnixDomainSocketAddress socketAddress = socketAddress(address);
+        Files.deleteIfExists(socketAddress.getPath());
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            serverChannel.bind(socketAddress);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return serverChannel;
+    }
+
+    public static UnixDomainSocketAddress socketAddress(String address) {
+        return UnixDomainSocketAddress.of(address.substring(UNIX_SCHEME.length()));
+    }
+
+
+    /**
+     * A connection over a non-blocking socket channel. Reads wait on one selector and writes on another,
+     * so a read and a write may block at the same time on different threads.
+     */
+    private static class ChannelConnection implements Connection {
+        private final SocketChannel channel;
+        private final String address;
+        private final Selector readSelector;
+        private final Selector writeSelector;
+        private final InputStream in;
+        private final OutputStream out;
+        private volatile int readTimeout = 0;
+
+        private ChannelConnection(SocketChannel channel, String address) throws IOException {
+            this.channel = channel;
+            this.address = address;
+
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+
+            in = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int count = read(b, 0, 1);
+                    return count == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return ChannelConnection.this.read(ByteBuffer.wrap(b, off, len));
+                }
+            };
+
+            out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ChannelConnection.this.write(ByteBuffer.wrap(b, off, len));
+                }
+            };
+        }
+
+        private int read(ByteBuffer buffer) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return 0;
+            }
+
+            int timeout = readTimeout;
+            long deadline = System.nanoTime() + timeout * 1_000_000L;
+            try {
+                while (true) {
+                    int count = channel.read(buffer);
+                    if (count != 0) {
+                        return count;
+                    }
+
+                    long wait = 0;
+                    if (timeout > 0) {
+                        wait = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    readSelector.select(wait);
+                    readSelector.selectedKeys().clear();
+                }
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) {
+                        writeSelector.select();
+                        writeSelector.selectedKeys().clear();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            readTimeout = timeout;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public String getDescription() {
+            return address;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the selectors deregisters the channel, which is only then actually closed
+            try {
+                channel.close();
+            } finally {
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+    }
+
+    private static class ChannelListener implements Listener {
+        private final ServerSocketChannel serverChannel;
+        private final String address;
+        private final Selector selector;
+
+        private ChannelListener(ServerSocketChannel serverChannel, String address) throws IOException {
+            this.serverChannel = serverChannel;
+            this.address = address;
+
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public Connection accept(int timeout) throws IOException {
+            long deadline = System.nanoTime() + timeout * 1_000_000L;
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (channel != null) {
+                        try {
+                            return new ChannelConnection(channel, address);
+                        } catch (IOException e) {
+                            channel.close();
+                            throw e;
+                        }
+                    }
+
+                    long wait = 0;
+                    if (timeout > 0) {
+                        wait = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Accept timed out");
+                        }
+                    }
+                    selector.select(wait);
+                    selector.selectedKeys().clear();
+                }
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public String getDescription() {
+            return address;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                serverChannel.close();
+                selector.close();
+            } finally {
+                Files.deleteIfExists(Path.of(address.substring(UNIX_SCHEME.length())));
+            }
+        }
+    }
+}